@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.co.slashingedge.utils.CsvWriter;
+
+/**
+ * <p>Benchmarks of searching the class graph to different depths: on its
+ * own with {@link ClassInspector#getAssociatedClasses(int)}, and as part of
+ * writing a line of nodes.txt with {@link Main#classInfo(CsvWriter, Class)}.
+ * </p>
+ *
+ * <p>A new ClassInspector is made for each class every time, so nothing is
+ * remembered between searches other than what's in the
+ * {@link ReferenceCache}.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssociationBenchmark {
+   @Param({ BenchmarkInputs.JDK, BenchmarkInputs.RES,
+            BenchmarkInputs.LEFT4KDEAD })
+   public String input;
+
+   @Param({ "1", "3", "-1" })
+   public int depth;
+
+   private Class[] classes;
+   private CsvWriter out;
+
+   @Setup
+   public void setup() throws Exception {
+      classes = BenchmarkInputs.get(input);
+      Main.recursion = depth;
+      // Rows are built as normal, then thrown away
+      out = new CsvWriter(new OutputStream() {
+         @Override
+         public void write(int b) {
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) {
+         }
+      });
+      // Fill in the global table, like Main does before printing anything
+      for(Class c : classes) {
+         new ClassInspector(c).getAssociatedClasses(depth);
+      }
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      out.close();
+   }
+
+   @Benchmark
+   public void getAssociatedClasses(Blackhole bh) {
+      for(Class c : classes) {
+         bh.consume(new ClassInspector(c).getAssociatedClasses(depth));
+      }
+   }
+
+   @Benchmark
+   public void classInfo() throws IOException {
+      for(Class c : classes) {
+         Main.classInfo(out,c);
+         out.endRow();
+      }
+   }
+}
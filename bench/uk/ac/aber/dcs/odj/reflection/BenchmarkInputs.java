@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.mojang.left4kdead.G;
+
+/**
+ * <p>The fixed sets of classes the benchmarks are run on, so that results
+ * from different runs can be compared:</p>
+ * <ul>
+ * <li><b>jdk</b> - a handful of classes from the core JDK packages</li>
+ * <li><b>res</b> - every class in the jars in res/ (loaded with a
+ * {@link ClassPathLoader}, so they don't need to be on the class path).
+ * Classes which can't be searched all the way, because something they
+ * refer to (directly or not) is missing, are left out.</li>
+ * <li><b>left4kdead</b> - just {@link G}</li>
+ * </ul>
+ *
+ * <p>The res/ directory is found relative to the working directory, or
+ * wherever the odj.res system property says.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class BenchmarkInputs {
+   public static final String JDK = "jdk";
+   public static final String RES = "res";
+   public static final String LEFT4KDEAD = "left4kdead";
+
+   private static final String[] JDK_CLASSES = {
+      "java.lang.String", "java.lang.Thread", "java.lang.ClassLoader",
+      "java.util.HashMap", "java.util.ArrayList", "java.util.TreeMap",
+      "java.util.concurrent.ConcurrentHashMap",
+      "java.util.concurrent.ThreadPoolExecutor",
+      "java.util.regex.Pattern", "java.io.File", "java.io.ObjectInputStream",
+      "java.net.URL", "java.nio.ByteBuffer", "java.text.SimpleDateFormat"
+   };
+
+   private BenchmarkInputs() {
+   }
+
+   /**
+    * @param name One of {@link #JDK}, {@link #RES} or {@link #LEFT4KDEAD}
+    * @return The classes in that set
+    * @throws IOException If the jars in res/ couldn't be read
+    * @throws ClassNotFoundException If one of the JDK classes doesn't exist
+    */
+   public static Class[] get(String name)
+            throws IOException, ClassNotFoundException {
+      if(name.equals(JDK)) {
+         Class[] classes = new Class[JDK_CLASSES.length];
+         for(int i=0; i<classes.length; i++) {
+            classes[i] = Class.forName(JDK_CLASSES[i],false,null);
+         }
+         return classes;
+      } else if(name.equals(RES)) {
+         return res();
+      } else if(name.equals(LEFT4KDEAD)) {
+         return new Class[] { G.class };
+      }
+      throw new IllegalArgumentException("Unknown input: "+name);
+   }
+
+   private static Class[] res() throws IOException {
+      File dir = new File(System.getProperty("odj.res","res"));
+      File[] jars = dir.listFiles();
+      if(jars == null) throw new IOException("No such directory: "+dir);
+      ArrayList<File> path = new ArrayList<File>();
+      ArrayList<String> names = new ArrayList<String>();
+      for(File jar : jars) {
+         if(!jar.getName().endsWith(".jar")) continue;
+         path.add(jar);
+         ZipFile zip = new ZipFile(jar);
+         try {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while(e.hasMoreElements()) {
+               String entry = e.nextElement().getName();
+               if(entry.endsWith(".class")) {
+                  names.add(entry.substring(0,entry.length()-6)
+                           .replace('/','.'));
+               }
+            }
+         } finally {
+            zip.close();
+         }
+      }
+
+      ClassLoader loader = new ClassPathLoader(
+               new ClassPath(path.toArray(new File[0])));
+      ArrayList<Class> classes = new ArrayList<Class>();
+      for(String n : names) {
+         try {
+            Class c = Class.forName(n,false,loader);
+            new ClassInspector(c).getAssociatedClasses(-1);
+            classes.add(c);
+         } catch(ClassNotFoundException | LinkageError e) {
+         }
+      }
+      return classes.toArray(new Class[0]);
+   }
+}
@@ -0,0 +1,39 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Runs the benchmarks in this directory (compiled against JMH, along with
+ * everything in src/) with allocation profiling turned on, and writes the
+ * results as JSON so that runs can be compared with each other, e.g. in
+ * <a href="https://jmh.morethan.io/">JMH Visualizer</a>.</p>
+ *
+ * <p>Usage: java uk.ac.aber.dcs.odj.reflection.Benchmarks [regexp]
+ * [results file]. The regexp picks which benchmarks to run (all of them by
+ * default); results go to jmh-result.json unless another file is given.
+ * Run it from the top of the project so that res/ can be found.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class Benchmarks {
+
+   public static void main(String[] args) throws RunnerException {
+      String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+      String result = args.length > 1 ? args[1] : "jmh-result.json";
+      Options opts = new OptionsBuilder()
+               .include(include)
+               .addProfiler(GCProfiler.class)
+               .resultFormat(ResultFormatType.JSON)
+               .result(result)
+               .build();
+      new Runner(opts).run();
+   }
+}
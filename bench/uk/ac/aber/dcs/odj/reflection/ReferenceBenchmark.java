@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Benchmarks of finding the classes each class refers to directly, and
+ * of recording those references in a {@link ClassMap}. None of these
+ * depend on the search depth, so they're kept apart from
+ * {@link AssociationBenchmark}.</p>
+ *
+ * <p>Each benchmark goes through the whole input set once, so scores are
+ * per input set rather than per class.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReferenceBenchmark {
+   @Param({ BenchmarkInputs.JDK, BenchmarkInputs.RES,
+            BenchmarkInputs.LEFT4KDEAD })
+   public String input;
+
+   private Class[] classes;
+   private List<Class>[] referred;
+
+   @Setup
+   @SuppressWarnings("unchecked")
+   public void setup() throws Exception {
+      classes = BenchmarkInputs.get(input);
+      referred = new List[classes.length];
+      for(int i=0; i<classes.length; i++) {
+         referred[i] = Arrays.asList(ClassInspector.getReferredClasses(
+                  classes[i]));
+      }
+   }
+
+   /**
+    * {@link ClassInspector#getReferredClasses()}, as it's normally called:
+    * after the first iteration everything comes from the
+    * {@link ReferenceCache}.
+    */
+   @Benchmark
+   public void getReferredClasses(Blackhole bh) {
+      for(Class c : classes) {
+         bh.consume(new ClassInspector(c).getReferredClasses());
+      }
+   }
+
+   /**
+    * The reflection that {@link ClassInspector#getReferredClasses()} does
+    * for a class that isn't cached.
+    */
+   @Benchmark
+   public void findReferredClasses(Blackhole bh) {
+      for(Class c : classes) {
+         bh.consume(ClassInspector.findReferredClasses(c,
+                  c.getDeclaredMethods(),c.getDeclaredFields()));
+      }
+   }
+
+   /**
+    * Record every class' references in an empty {@link ClassMap}, then
+    * look up what refers to each class (which builds the map's adjacency
+    * lists).
+    */
+   @Benchmark
+   public ClassMap classMapAddAll(Blackhole bh) {
+      ClassMap map = new ClassMap();
+      for(int i=0; i<classes.length; i++) {
+         map.addAll(referred[i],classes[i]);
+      }
+      for(Class c : classes) bh.consume(map.get(c).size());
+      return map;
+   }
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package uk.co.slashingedge.utils;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks of word-wrapping a line of output with {@link Log}, written
+ * to a stream that throws everything away. The interesting number is the
+ * GC profiler's gc.alloc.rate.norm (bytes allocated per call): the
+ * splitWords benchmark is the old way of wrapping (splitting the line on
+ * spaces and printing each word separately), for comparison, while
+ * {@link Log#wrap(Log.Level, CharSequence)} shouldn't allocate anything at
+ * all once it's warmed up.</p>
+ *
+ * <p>Run with {@link uk.ac.aber.dcs.odj.reflection.Benchmarks}, which turns
+ * the GC profiler on.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+   // About what a line of output.txt looks like
+   private static final String LINE = "com.mojang.left4kdead.G G " +
+            "com.mojang.left4kdead.G 10 1 3 2 0 1 0 0 2 14 4 9 1 0 3 0 0 " +
+            "23 812 2431 57 public static void main(java.lang.String[])";
+
+   @Param({ "80", "-1" })
+   public int width;
+
+   private Log log;
+   private PrintStream out;
+   private StringBuilder builder;
+
+   @Setup
+   public void setup() {
+      out = new PrintStream(OutputStream.nullOutputStream());
+      log = new Log(out);
+      log.width = width;
+      builder = new StringBuilder(LINE);
+   }
+
+   /**
+    * How Log used to wrap a line: split it, then print each word.
+    */
+   @Benchmark
+   public void splitWords() {
+      if(width == -1) {
+         out.print(LINE);
+         return;
+      }
+      int length = 0;
+      for(String word : LINE.split(" ")) {
+         if(length+word.length() >= width) {
+            out.print("\n");
+            length = 0;
+         }
+         out.print(word+" ");
+         length += word.length()+1;
+      }
+   }
+
+   @Benchmark
+   public Log wrapString() {
+      return log.wrap(Log.Level.PRINT,LINE);
+   }
+
+   @Benchmark
+   public Log wrapStringBuilder() {
+      return log.wrap(Log.Level.PRINT,builder);
+   }
+}
@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>On-disk cache of parsed class files, so classes that haven't changed
+ * since the last run don't have to be read & parsed again. Each class is
+ * stored along with the checksum of its class file (see
+ * {@link ClassPath#getChecksum(String)}): a cached class is only used if the
+ * class file on the class path still has the same checksum. Anything else
+ * is parsed as normal and replaces what was in the cache.</p>
+ *
+ * <p>Everything {@link BytecodeInspector} needs (the classes each one refers
+ * to, and the counts that go into its {@link ClassMetrics}) comes from the
+ * parsed class, so the graph of a mostly unchanged class path can be rebuilt
+ * almost entirely from the cache.</p>
+ *
+ * <p>The file is read all at once by {@link #load()} and written all at once
+ * by {@link #save()}. Strings are only written out once each, as class names
+ * turn up over and over again.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class AnalysisCache {
+   private static final int MAGIC = 0x4F444A43; // "ODJC"
+   private static final int VERSION = 1;
+
+   private final File file;
+   private final HashMap<String, Cached> classes =
+            new HashMap<String, Cached>();
+   private boolean changed = false;
+   private long hits = 0;
+   private long misses = 0;
+
+   /**
+    * @param file The file the cache is kept in. Doesn't need to exist yet.
+    * If it's null, the cache is only kept in memory.
+    */
+   public AnalysisCache(File file) {
+      this.file = file;
+   }
+
+   /**
+    * @return The file the cache is kept in
+    */
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Read the cache file, replacing anything already in the cache. If the
+    * file doesn't exist the cache is left empty.
+    * @throws IOException If the file couldn't be read, or isn't a cache
+    * file (or is one from a different version). The cache is left empty.
+    */
+   public synchronized void load() throws IOException {
+      classes.clear();
+      changed = false;
+      if(file == null || !file.isFile()) return;
+      Reader in = new Reader(new DataInputStream(new BufferedInputStream(
+               new FileInputStream(file),1 << 16)));
+      try {
+         if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an analysis cache: "+file);
+         }
+         int count = in.readInt();
+         for(int i=0; i<count; i++) {
+            String name = in.readString();
+            long checksum = in.readLong();
+            classes.put(name,new Cached(checksum,ClassFile.read(in)));
+         }
+      } catch(IOException e) {
+         classes.clear();
+         throw e;
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Write the cache out to its file, if anything has been added since it
+    * was loaded. It's written to a temporary file first, so a run that's
+    * killed half way through saving doesn't leave a broken cache behind.
+    * @throws IOException If the file couldn't be written
+    */
+   public synchronized void save() throws IOException {
+      if(!changed || file == null) return;
+      File tmp = new File(file.getPath()+".tmp");
+      Writer out = new Writer(new DataOutputStream(new BufferedOutputStream(
+               new FileOutputStream(tmp),1 << 16)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(classes.size());
+         for(Map.Entry<String, Cached> e : classes.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeLong(e.getValue().checksum);
+            e.getValue().classFile.write(out);
+         }
+      } finally {
+         out.close();
+      }
+      if(!tmp.renameTo(file)) {
+         // Windows won't rename over an existing file
+         file.delete();
+         if(!tmp.renameTo(file)) {
+            throw new IOException("Unable to replace "+file);
+         }
+      }
+      changed = false;
+   }
+
+   /**
+    * Look up a class in the cache.
+    * @param name Name of the class
+    * @param checksum Checksum of the class' current class file
+    * @return The cached class, or null if it isn't cached or its class file
+    * has changed since it was.
+    */
+   public synchronized ClassFile get(String name, long checksum) {
+      Cached c = classes.get(name);
+      if(c == null || c.checksum != checksum) {
+         misses++;
+         return null;
+      }
+      hits++;
+      return c.classFile;
+   }
+
+   /**
+    * Add a class to the cache, replacing any older copy of it.
+    * @param name Name of the class
+    * @param checksum Checksum of the class file it was parsed from
+    * @param cf The parsed class file
+    */
+   public synchronized void put(String name, long checksum, ClassFile cf) {
+      classes.put(name,new Cached(checksum,cf));
+      changed = true;
+   }
+
+   /**
+    * @return Number of classes in the cache
+    */
+   public synchronized int size() {
+      return classes.size();
+   }
+
+   /**
+    * @return Number of lookups which found an up to date class
+    */
+   public synchronized long getHits() {
+      return hits;
+   }
+
+   /**
+    * @return Number of lookups which didn't
+    */
+   public synchronized long getMisses() {
+      return misses;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return (file == null ? "in memory" : file)+": "+classes.size()+
+               " classes, "+hits+" hits, "+misses+" misses";
+   }
+
+   private static final class Cached {
+      final long checksum;
+      final ClassFile classFile;
+
+      Cached(long checksum, ClassFile classFile) {
+         this.checksum = checksum;
+         this.classFile = classFile;
+      }
+   }
+
+   /**
+    * Writes the cache file. Each distinct string is written out in full the
+    * first time it's seen, and as its index in the list of strings written
+    * so far after that.
+    */
+   static final class Writer {
+      private final DataOutputStream out;
+      private final HashMap<String, Integer> strings =
+               new HashMap<String, Integer>();
+
+      Writer(DataOutputStream out) {
+         this.out = out;
+      }
+
+      void writeString(String s) throws IOException {
+         if(s == null) {
+            out.writeInt(-1);
+            return;
+         }
+         Integer index = strings.get(s);
+         if(index != null) {
+            out.writeInt(index);
+         } else {
+            out.writeInt(strings.size());
+            out.writeUTF(s);
+            strings.put(s,strings.size());
+         }
+      }
+
+      void writeStrings(String[] s) throws IOException {
+         out.writeInt(s.length);
+         for(String str : s) writeString(str);
+      }
+
+      void writeInts(int[] i) throws IOException {
+         out.writeInt(i.length);
+         for(int n : i) out.writeInt(n);
+      }
+
+      void writeInt(int i) throws IOException {
+         out.writeInt(i);
+      }
+
+      void writeLong(long l) throws IOException {
+         out.writeLong(l);
+      }
+
+      void close() throws IOException {
+         out.close();
+      }
+   }
+
+   /**
+    * Reads what {@link Writer} wrote.
+    */
+   static final class Reader {
+      private final DataInputStream in;
+      private final ArrayList<String> strings = new ArrayList<String>();
+
+      Reader(DataInputStream in) {
+         this.in = in;
+      }
+
+      String readString() throws IOException {
+         int index = in.readInt();
+         if(index == -1) return null;
+         if(index == strings.size()) {
+            strings.add(in.readUTF());
+         } else if(index < 0 || index > strings.size()) {
+            throw new IOException("Corrupt analysis cache");
+         }
+         return strings.get(index);
+      }
+
+      String[] readStrings() throws IOException {
+         String[] s = new String[readLength()];
+         for(int i=0; i<s.length; i++) s[i] = readString();
+         return s;
+      }
+
+      int[] readInts() throws IOException {
+         int[] i = new int[readLength()];
+         for(int n=0; n<i.length; n++) i[n] = in.readInt();
+         return i;
+      }
+
+      int readInt() throws IOException {
+         return in.readInt();
+      }
+
+      long readLong() throws IOException {
+         return in.readLong();
+      }
+
+      private int readLength() throws IOException {
+         int length = in.readInt();
+         if(length < 0) throw new IOException("Corrupt analysis cache");
+         return length;
+      }
+
+      void close() throws IOException {
+         in.close();
+      }
+   }
+}
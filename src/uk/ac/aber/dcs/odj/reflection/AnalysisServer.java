@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uk.co.slashingedge.utils.CsvWriter;
+import uk.co.slashingedge.utils.Log;
+
+/**
+ * <p>Keeps the graph of the classes in {@link Main#file} (or the jars being
+ * scanned) in memory, and answers questions about it over a socket, so
+ * tools which need to ask again and again don't pay for starting a JVM and
+ * building the whole graph each time. Started with Main's "server"
+ * subcommand. Only classes read from class files ({@link BytecodeInspector})
+ * are supported: classes which have been loaded can't be re-read when their
+ * jars change.</p>
+ *
+ * <p>The server only listens on the loopback address. Each request is a
+ * line of text, a command followed by its arguments separated by spaces:</p>
+ * <ul>
+ * <li>metrics &lt;class&gt; - the class' row of nodes.txt, after the
+ * header</li>
+ * <li>closure &lt;class&gt; [depth] - the number of classes associated with
+ * the class (the same as nodes.txt, when depth is left out)</li>
+ * <li>dependencies|dependents &lt;class&gt; [depth], path &lt;class&gt;
+ * &lt;class&gt; - the same as the query subcommands (see
+ * {@link GraphQuery})</li>
+ * <li>nodes, edges - the whole of nodes.txt or edges.txt</li>
+ * <li>rescan - read the class path again, e.g. after a jar's been rebuilt.
+ * Classes whose class files haven't changed come from the
+ * {@link AnalysisCache}, so only the ones that have are parsed again.</li>
+ * <li>stats - the server's {@link Stats} so far</li>
+ * <li>quit - close the connection; shutdown - stop the server</li>
+ * </ul>
+ * <p>Every answer ends with an empty line. Errors are a single line
+ * starting with //, like the comments in the query subcommands' output.
+ * Connections are handled on their own threads, and any number of
+ * questions can be answered at once, but a rescan waits for them all to
+ * finish (and they wait for it).</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class AnalysisServer {
+   public static final int DEFAULT_PORT = 4717;
+
+   private final ServerSocket socket;
+   private final ExecutorService threads = Executors.newCachedThreadPool();
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   // Which load of the class path the graph is from
+   private volatile int generation = 0;
+   private volatile List<String> classes;
+
+   /**
+    * @param port Port to listen on
+    * @throws IOException If the port couldn't be listened on
+    */
+   public AnalysisServer(int port) throws IOException {
+      socket = new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+   }
+
+   /**
+    * Read (or re-read) the classes, and search from each of them to
+    * {@link Main#recursion} levels, the same as a normal run does before
+    * printing anything. Questions wait until it's done.
+    * @throws IOException If the class path or the list of classes couldn't
+    * be read
+    */
+   public void load() throws IOException {
+      lock.writeLock().lock();
+      try {
+         ClassPath old = BytecodeInspector.getClassPath();
+         BytecodeInspector.setClassPath(new ClassPath(Main.classPath,true));
+         old.close();
+         BytecodeInspector.reset();
+         ClassPath scanned = null;
+         ClassPathScanner scanner = null;
+         if(Main.scan) {
+            scanned = new ClassPath(Main.file);
+            scanner = new ClassPathScanner(scanned,
+                     ClassInspector.getParallelism());
+         }
+         try {
+            List<String> list = Main.listClasses(scanner);
+            Main.warmUp(list.toArray(new String[0]),true,scanner);
+            classes = list;
+         } finally {
+            if(scanner != null) {
+               scanner.shutdown();
+               scanned.close();
+            }
+         }
+         try {
+            BytecodeInspector.getCache().save();
+         } catch(IOException e) {
+            Log.err("Unable to save cache",e.getMessage());
+         }
+         generation++;
+      } finally {
+         lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Answer connections until a client asks the server to shut down.
+    * @throws IOException If the server socket fails
+    */
+   public void serve() throws IOException {
+      try {
+         while(true) {
+            Socket client;
+            try {
+               client = socket.accept();
+            } catch(SocketException e) {
+               // Closed by shutdown()
+               if(socket.isClosed()) break;
+               throw e;
+            }
+            threads.execute(new Connection(client));
+         }
+      } finally {
+         threads.shutdown();
+      }
+   }
+
+   /**
+    * Stop accepting connections. Connections which are already open are
+    * answered until they're closed.
+    */
+   public void shutdown() {
+      try {
+         socket.close();
+      } catch(IOException e) {
+         Log.err("Unable to close server socket",e.getMessage());
+      }
+   }
+
+   /*
+    * One client. Queries are answered from a snapshot of the graph, which
+    * is only made again when the class path has been re-read.
+    */
+   private final class Connection implements Runnable {
+      private final Socket client;
+      private GraphQuery query;
+      private int queried = -1;
+
+      Connection(Socket client) {
+         this.client = client;
+      }
+
+      @Override
+      public void run() {
+         try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                     client.getInputStream(),"UTF-8"));
+            CsvWriter out = new CsvWriter(client.getOutputStream());
+            String line;
+            while((line = in.readLine()) != null) {
+               String[] words = line.trim().split("\\s+");
+               if(words[0].equals("quit")) break;
+               if(words[0].equals("shutdown")) {
+                  shutdown();
+                  break;
+               }
+               try {
+                  answer(words[0],
+                           Arrays.asList(words).subList(1,words.length),out);
+               } catch(RuntimeException e) {
+                  out.field("//Error: "+e).endRow();
+               }
+               out.endRow().flush();
+            }
+         } catch(IOException e) {
+            // The client's gone away
+         } finally {
+            try {
+               client.close();
+            } catch(IOException e) {
+            }
+         }
+      }
+
+      private void answer(String command, List<String> args, CsvWriter out)
+               throws IOException {
+         if(command.equals("rescan")) {
+            long start = System.nanoTime();
+            load();
+            out.field("//Read "+classes.size()+" classes in "+
+                     (System.nanoTime()-start)/1000000+"ms").endRow();
+            return;
+         }
+         lock.readLock().lock();
+         try {
+            ClassNameMap map = BytecodeInspector.getAllInspectedClasses();
+            if(Main.QUERIES.contains(command)) {
+               if(queried != generation) {
+                  query = new GraphQuery(map);
+                  queried = generation;
+               }
+               if(!Main.printQuery(out,query,command,args)) usage(out);
+            } else if(command.equals("metrics") ||
+                     command.equals("closure")) {
+               if(args.isEmpty()) {
+                  usage(out);
+               } else if(map.getGraph().getId(args.get(0)) == -1) {
+                  out.field("//Class not found: "+args.get(0)).endRow();
+               } else if(command.equals("metrics")) {
+                  Main.printNode(out,Main.BYTECODE,map.getGraph().components(),
+                           args.get(0));
+               } else {
+                  int depth = args.size() > 1 ?
+                           Integer.parseInt(args.get(1)) : Main.recursion;
+                  out.field(closure(args.get(0),depth)).endRow();
+               }
+            } else if(command.equals("nodes")) {
+               Main.printNodes(out,Main.BYTECODE,map.getGraph().components(),
+                        null);
+            } else if(command.equals("edges")) {
+               Main.printEdges(out,map,classes,null);
+            } else if(command.equals("stats")) {
+               out.flush();
+               PrintStream print = new PrintStream(client.getOutputStream());
+               Stats.report(print);
+               print.flush();
+            } else {
+               usage(out);
+            }
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+   }
+
+   /*
+    * Same as the "indirectly associated classes" column of nodes.txt.
+    */
+   private static int closure(String cls, int depth) {
+      if(BytecodeInspector.getClassFile(cls) == null) return 0;
+      try {
+         return new BytecodeInspector(cls).getNumberOfAssociatedClasses(depth);
+      } catch(ClassNotFoundException e) {
+         // Can't happen: we've just found its class file
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void usage(CsvWriter out) throws IOException {
+      out.field("//Commands: metrics <class>; closure <class> [depth]; " +
+               "dependencies <class> [depth]; dependents <class> [depth]; " +
+               "path <class> <class>; nodes; edges; rescan; stats; quit; " +
+               "shutdown").endRow();
+   }
+}
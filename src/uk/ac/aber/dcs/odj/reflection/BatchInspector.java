@@ -0,0 +1,247 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Inspects classes with reflection, like {@link ClassInspector}, but
+ * without keeping any of them loaded. Classes are loaded a batch at a time
+ * by a new {@link ClassPathLoader}; everything that's wanted from them (the
+ * names of the classes they refer to, and their {@link ClassMetrics}) is
+ * copied out, and then the loader is dropped, so that all the classes in the
+ * batch can be unloaded by the garbage collector. ClassInspector keeps every
+ * class it looks at loaded (and in its tables) until the JVM exits.</p>
+ *
+ * <p>After each batch the heap & metaspace in use are compared to a memory
+ * limit: if they're over it the next batch is made smaller, and if they're
+ * well under it the next batch is made bigger. So any number of classes can
+ * be inspected in a fixed amount of memory, with as few loaders as
+ * possible.</p>
+ *
+ * <p>Classes are searched breadth-first from the classes given to
+ * {@link #inspect(Collection, int)}, in the same way as
+ * {@link ClassInspector#getClosure(int)}. Classes which are only just within
+ * the search depth are inspected (for their metrics), but the classes they
+ * refer to aren't followed or recorded. JDK classes are loaded by the
+ * bootstrap loader, so they're inspected in the same way but stay loaded.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class BatchInspector {
+   private static final int INITIAL_BATCH = 256;
+   private static final int MAX_BATCH = 1 << 16;
+
+   private final ClassPath classPath;
+   private final long memoryLimit;
+   private final ClassNameMap inspectedClasses = new ClassNameMap();
+   private final HashMap<String, ClassMetrics> metrics =
+            new HashMap<String, ClassMetrics>();
+   private int batchSize = INITIAL_BATCH;
+   private int batches = 0;
+   private long peakMemory = 0;
+
+   /**
+    * @param classPath Where to load classes from (other than the JDK)
+    * @param memoryLimit Bytes of heap & metaspace to try to stay under
+    */
+   public BatchInspector(ClassPath classPath, long memoryLimit) {
+      this.classPath = classPath;
+      this.memoryLimit = memoryLimit;
+   }
+
+   /**
+    * Search the class graph from some classes, inspecting everything found.
+    * Can be called more than once: classes already inspected aren't
+    * inspected again.
+    * @param classes Names of the classes to start from
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    */
+   public void inspect(Collection<String> classes, int depth) {
+      HashMap<String, Integer> found = new HashMap<String, Integer>();
+      ArrayDeque<String> queue = new ArrayDeque<String>();
+      for(String c : classes) {
+         if(!metrics.containsKey(c) && found.put(c,0) == null) queue.add(c);
+      }
+      // The queue's in breadth-first order, and so is each batch
+      while(!queue.isEmpty()) {
+         List<String> batch = new ArrayList<String>();
+         while(batch.size() < batchSize && !queue.isEmpty()) {
+            batch.add(queue.poll());
+         }
+         ClassLoader loader = new ClassPathLoader(classPath);
+         for(String c : batch) {
+            int d = found.get(c);
+            boolean expand = depth == -1 || d <= depth;
+            for(String r : inspect(loader,c,expand)) {
+               if(!metrics.containsKey(r) && !found.containsKey(r)) {
+                  found.put(r,d+1);
+                  queue.add(r);
+               }
+            }
+         }
+         // Nothing else refers to the loader, so this lets go of the batch
+         loader = null;
+         batches++;
+         resize();
+      }
+   }
+
+   /*
+    * Load a class, and copy out everything that's wanted from it. Returns
+    * the names of the classes it refers to, if they're to be followed.
+    */
+   private String[] inspect(ClassLoader loader, String name, boolean expand) {
+      Class cls;
+      Class[] referred;
+      Stats.Span span = Stats.begin(Stats.Timer.INSPECT,name);
+      try {
+         cls = Class.forName(name,false,loader);
+         Method[] m = cls.getDeclaredMethods();
+         Field[] f = cls.getDeclaredFields();
+         Stats.count(Stats.Counter.REFLECTIVE_CALLS,2);
+         referred = ClassInspector.collectReferredClasses(cls,m,f);
+         metrics.put(name,ClassMetrics.forClass(cls,m,f,referred));
+      } catch(ClassNotFoundException | LinkageError e) {
+         // Same as BytecodeInspector: missing classes are just leaves
+         metrics.put(name,ClassMetrics.unknown(name));
+         inspectedClasses.addAll(Collections.singletonList(name),name);
+         return new String[0];
+      } finally {
+         span.end();
+      }
+      String[] names = new String[referred.length];
+      for(int i=0; i<referred.length; i++) names[i] = referred[i].getName();
+      if(!expand) {
+         inspectedClasses.add(name,name);
+         return new String[0];
+      }
+      inspectedClasses.addAll(Arrays.asList(names),name);
+      return names;
+   }
+
+   /*
+    * Shrink the batches if we're over the limit, even after getting rid of
+    * the last batch's classes, or grow them if there's plenty of room.
+    */
+   private void resize() {
+      long used = memoryUsed();
+      if(used > memoryLimit) {
+         System.gc();
+         used = memoryUsed();
+         if(used > memoryLimit) batchSize = Math.max(1,batchSize/2);
+      } else if(used < memoryLimit/2) {
+         batchSize = Math.min(MAX_BATCH,batchSize*2);
+      }
+      peakMemory = Math.max(peakMemory,used);
+   }
+
+   /**
+    * @return Bytes of heap & metaspace currently in use
+    */
+   public static long memoryUsed() {
+      long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+               .getUsed();
+      for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if(pool.getType() == MemoryType.NON_HEAP &&
+                  pool.getName().contains("Metaspace")) {
+            used += pool.getUsage().getUsed();
+         }
+      }
+      return used;
+   }
+
+   /**
+    * @return The references found between classes, by name
+    */
+   public ClassNameMap getAllInspectedClasses() {
+      return inspectedClasses;
+   }
+
+   /**
+    * @param cls Name of a class
+    * @return The class' metrics (all 0 if it couldn't be loaded, or hasn't
+    * been inspected)
+    */
+   public ClassMetrics getMetrics(String cls) {
+      ClassMetrics m = metrics.get(cls);
+      return m != null ? m : ClassMetrics.unknown(cls);
+   }
+
+   /**
+    * Search what's been found so far, breadth-first from a class.
+    * @param cls Name of the class to start from
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Every class found along with its depth
+    */
+   public ClassClosure<String> getClosure(String cls, int depth) {
+      Stats.Span span = Stats.begin(Stats.Timer.SEARCH,cls);
+      ClassClosure<String> found = new ClassClosure<String>(cls,depth);
+      ClassGraph graph = inspectedClasses.getGraph();
+      ClassGraph.Adjacency forward = graph.forward();
+      ArrayDeque<String> queue = new ArrayDeque<String>();
+      queue.add(cls);
+      while(!queue.isEmpty()) {
+         String c = queue.poll();
+         int d = found.getDepth(c)+1;
+         int id = graph.getId(c);
+         if(id == -1) continue;
+         for(int i=forward.start(id); i<forward.end(id); i++) {
+            String r = graph.getName(forward.target(i));
+            if(found.add(r,d) && found.expand(d)) queue.add(r);
+         }
+      }
+      span.end();
+      return found;
+   }
+
+   /**
+    * Count what {@link #getClosure(String, int)} would find, using the
+    * reachability index for an infinite search.
+    * @param cls Name of the class to start from
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Number of classes found, including cls
+    */
+   public int getNumberOfAssociatedClasses(String cls, int depth) {
+      if(depth == -1) {
+         int n = inspectedClasses.getReachableCount(cls);
+         if(n != -1) return n;
+      }
+      return getClosure(cls,depth).getClasses(depth).size();
+   }
+
+   /**
+    * @return Number of class loaders used so far
+    */
+   public int getBatches() {
+      return batches;
+   }
+
+   /**
+    * @return Most memory seen in use after a batch, in bytes
+    */
+   public long getPeakMemory() {
+      return peakMemory;
+   }
+
+   @Override
+   public String toString() {
+      return metrics.size()+" classes in "+batches+" batches, peak "+
+               (peakMemory >> 20)+"MB of "+(memoryLimit >> 20)+"MB";
+   }
+}
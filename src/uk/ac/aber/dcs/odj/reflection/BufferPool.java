@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Pool of direct ByteBuffers to read class files into, so reading
+ * thousands of them doesn't mean allocating (and garbage collecting)
+ * thousands of buffers. Buffers come in power-of-two sizes, and are handed
+ * back with {@link #release(ByteBuffer)} once whatever was read into them
+ * has been used.</p>
+ *
+ * <p>Only a few buffers of each size are kept: anything released once the
+ * pool for its size is full is left for the garbage collector. Very large
+ * buffers aren't pooled at all.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class BufferPool {
+   private static final int MIN_SHIFT = 10; // 1K
+   private static final int MAX_SHIFT = 22; // 4M
+   private static final int PER_SIZE = 16;
+
+   private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+   private final AtomicInteger[] counts;
+
+   @SuppressWarnings("unchecked")
+   public BufferPool() {
+      int sizes = MAX_SHIFT-MIN_SHIFT+1;
+      free = new ConcurrentLinkedQueue[sizes];
+      counts = new AtomicInteger[sizes];
+      for(int i=0; i<sizes; i++) {
+         free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+         counts[i] = new AtomicInteger();
+      }
+   }
+
+   /*
+    * Which list buffers big enough for this many bytes are kept in, or -1
+    * if they're too big to pool.
+    */
+   private static int sizeClass(int size) {
+      int shift = Math.max(MIN_SHIFT,32-Integer.numberOfLeadingZeros(
+               Math.max(size,1)-1));
+      return shift > MAX_SHIFT ? -1 : shift-MIN_SHIFT;
+   }
+
+   /**
+    * Get a buffer with room for at least {@code size} bytes. Its position is
+    * 0 and its limit is {@code size}.
+    * @param size Number of bytes needed
+    * @return A cleared buffer
+    */
+   public ByteBuffer acquire(int size) {
+      int c = sizeClass(size);
+      ByteBuffer buf = null;
+      if(c != -1) {
+         buf = free[c].poll();
+         if(buf != null) counts[c].decrementAndGet();
+      }
+      if(buf == null) {
+         buf = ByteBuffer.allocateDirect(c == -1 ? size : 1 << (c+MIN_SHIFT));
+      }
+      buf.clear();
+      buf.limit(size);
+      return buf;
+   }
+
+   /**
+    * Give a buffer back to the pool. It mustn't be used again afterwards.
+    * Buffers that didn't come from a pool (e.g. read-only slices of a mapped
+    * jar) are ignored, so it's always safe to release whatever a
+    * {@link ClassPath} gave out.
+    * @param buf The buffer, or null
+    */
+   public void release(ByteBuffer buf) {
+      if(buf == null || buf.isReadOnly() || !buf.isDirect()) return;
+      int c = sizeClass(buf.capacity());
+      if(c == -1 || buf.capacity() != 1 << (c+MIN_SHIFT)) return;
+      if(counts[c].incrementAndGet() > PER_SIZE) {
+         counts[c].decrementAndGet();
+         return;
+      }
+      free[c].offer(buf);
+   }
+}
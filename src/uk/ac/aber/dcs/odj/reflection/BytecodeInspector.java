@@ -0,0 +1,323 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.co.slashingedge.utils.Log;
+
+/**
+ * <p>Does the same job as {@link ClassInspector}, but reads class files
+ * straight from a {@link ClassPath} instead of using reflection. None of the
+ * inspected classes are ever loaded, so there's no limit on how many classes
+ * can be looked at other than the size of the resulting graph.</p>
+ *
+ * <p>The references found aren't quite the same as ClassInspector's.
+ * Reflection only sees a class' signature: its superclass, interfaces,
+ * member & enclosing classes, and the types of its fields and of its
+ * methods' arguments & return values. A class file also lists every class
+ * its code uses (see {@link ClassFile#getReferredClasses()}), e.g. a class
+ * which is only instantiated, cast to or called inside a method body. So
+ * the same class usually refers to more classes here, and the columns of
+ * nodes.txt which count references (and the searches which follow them)
+ * come out higher than with reflection.</p>
+ *
+ * <p>Classes are identified by name. Classes which aren't on the class path
+ * are read from the JDK if they're part of it (see {@link ClassPath}).
+ * Classes which can't be found at all are still recorded as nodes, but
+ * can't be inspected any further.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class BytecodeInspector {
+   private static volatile ClassNameMap inspectedClasses = new ClassNameMap();
+   private static final ConcurrentHashMap<String, ClassFile> classFiles =
+            new ConcurrentHashMap<String, ClassFile>();
+   private static final ConcurrentHashMap<String, Boolean> missingClasses =
+            new ConcurrentHashMap<String, Boolean>();
+   private static final ConcurrentHashMap<String, ClassMetrics> metrics =
+            new ConcurrentHashMap<String, ClassMetrics>();
+   // Swapped by the server & diff while other threads may be reading
+   private static volatile ClassPath classPath = new ClassPath("");
+   private static volatile AnalysisCache cache = null;
+   private String inspectedClass;
+   private ClassClosure<String> closure;
+
+   /**
+    * @param cls Name of the class this BytecodeInspector will be inspecting
+    * @throws ClassNotFoundException If there's no such class on the class path
+    */
+   public BytecodeInspector(String cls) throws ClassNotFoundException {
+      if(getClassFile(cls) == null) throw new ClassNotFoundException(cls);
+      inspectedClass = cls;
+   }
+
+   /**
+    * Set the jars & directories that classes are read from. Any classes
+    * already read from the previous class path are kept.
+    * @param path The class path to search for classes
+    */
+   public static void setClassPath(ClassPath path) {
+      classPath = path;
+   }
+
+   /**
+    * Forget every class that's been read so far, e.g. because the jars on
+    * the class path have changed, and start a new global table. Classes in
+    * the cache (if there is one) are kept, so reading the classes which
+    * haven't changed again doesn't involve parsing them. Nothing else should
+    * be inspecting classes at the time.
+    */
+   public static synchronized void reset() {
+      inspectedClasses = new ClassNameMap();
+      classFiles.clear();
+      missingClasses.clear();
+      metrics.clear();
+   }
+
+   /**
+    * @return The class path classes are read from
+    */
+   public static ClassPath getClassPath() {
+      return classPath;
+   }
+
+   /**
+    * Set the on-disk cache that parsed classes are looked up in before
+    * their class files are parsed, and added to afterwards.
+    * @param c The cache to use, or null to always parse class files
+    */
+   public static void setCache(AnalysisCache c) {
+      cache = c;
+   }
+
+   /**
+    * @return The on-disk cache of parsed classes, or null if there isn't one
+    */
+   public static AnalysisCache getCache() {
+      return cache;
+   }
+
+   /**
+    * Find and parse a class file. Each class is only ever parsed once, and
+    * the references it makes to other classes are recorded in the global
+    * table at that point. If there's a cache, and the class file hasn't
+    * changed since it was cached, it isn't parsed at all.
+    * @param cls Name of the class
+    * @return The parsed class, or null if it isn't on the class path (or
+    * can't be read).
+    */
+   public static ClassFile getClassFile(String cls) {
+      ClassFile cf = classFiles.get(cls);
+      if(cf != null || missingClasses.containsKey(cls)) return cf;
+      Stats.Span span = Stats.begin(Stats.Timer.INSPECT,cls);
+      try {
+         // Read each once, in case they're swapped half way through
+         ClassPath path = classPath;
+         AnalysisCache c = cache;
+         cf = c == null ? path.getClassFile(cls) : readCached(cls,path,c);
+      } catch(IOException e) {
+         Log.err("Unable to read class",cls,e.getMessage());
+      } finally {
+         span.end();
+      }
+      if(cf == null) {
+         // It doesn't refer to anything, so there's nothing more to find
+         inspectedClasses.setExplored(cls);
+         missingClasses.put(cls,Boolean.TRUE);
+         return null;
+      }
+      // The references are recorded before the class file is published, so
+      // anyone who finds it in classFiles also finds its edges. If another
+      // thread got there first, this only records the same edges again.
+      inspectedClasses.addAll(Arrays.asList(cf.getReferredClasses()),cls);
+      ClassFile first = classFiles.putIfAbsent(cls,cf);
+      return first != null ? first : cf;
+   }
+
+   /*
+    * The checksum of a class in a jar comes from the jar's directory, so
+    * checking whether the cached copy is still good doesn't cost anything
+    * like as much as parsing it again.
+    */
+   private static ClassFile readCached(String cls, ClassPath path,
+            AnalysisCache cache) throws IOException {
+      long checksum = path.getChecksum(cls);
+      if(checksum == -1) return null;
+      ClassFile cf = cache.get(cls,checksum);
+      if(cf != null) return cf;
+      cf = path.getClassFile(cls);
+      if(cf != null) cache.put(cls,checksum,cf);
+      return cf;
+   }
+
+   /**
+    * @return The parsed class file of the inspected class
+    */
+   public ClassFile getClassFile() {
+      return getClassFile(inspectedClass);
+   }
+
+   /**
+    * @return Name of the inspected class
+    */
+   public String getName() {
+      return inspectedClass;
+   }
+
+   /*
+    * Classes that aren't on the class path don't refer to anything.
+    */
+   private static String[] getReferredClasses(String cls) {
+      ClassFile cf = getClassFile(cls);
+      if(cf == null) return new String[] { cls };
+      return cf.getReferredClasses();
+   }
+
+   /**
+    * Get all the classes the inspected class refers to in its class file.
+    * Includes the inspected class itself.
+    * @return Array of class names
+    */
+   public String[] getReferredClasses() {
+      return getReferredClasses(inspectedClass);
+   }
+
+   /**
+    * Get the names of the classes associated with the inspected class: the
+    * classes referred to by the classes referred to [...] referred to by the
+    * inspected class. Works the same way as
+    * {@link ClassInspector#getAssociatedClasses(int)}.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Array of class names found
+    */
+   public String[] getAssociatedClasses(int depth) {
+      return associate(this.getClosure(depth).getClasses(depth))
+               .toArray(new String[0]);
+   }
+
+   /**
+    * Count the classes associated with the inspected class, in the same way
+    * as {@link ClassInspector#getNumberOfAssociatedClasses(int)}.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Same as {@code getAssociatedClasses(depth).length}
+    */
+   public int getNumberOfAssociatedClasses(int depth) {
+      if(depth == -1) {
+         int n = inspectedClasses.associateReachable(inspectedClass);
+         if(n != -1) return n;
+      }
+      return associate(this.getClosure(depth).getClasses(depth)).size();
+   }
+
+   /*
+    * Same as ClassInspector: everything found is recorded as being
+    * associated with the inspected class.
+    */
+   private List<String> associate(List<String> classes) {
+      inspectedClasses.associateAll(classes,inspectedClass);
+      return classes;
+   }
+
+   /**
+    * @param cls Name of the class to look for
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Whether {@code getAssociatedClasses(depth)} would include it
+    */
+   public boolean isAssociatedWith(String cls, int depth) {
+      if(depth == -1) {
+         Boolean found = inspectedClasses.reaches(inspectedClass,cls);
+         if(found != null) return found;
+      }
+      return this.getClosure(depth).getClasses(depth).contains(cls);
+   }
+
+   /**
+    * Search the class graph breadth-first from the inspected class, the same
+    * way as {@link ClassInspector#getClosure(int)}.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search.
+    * @return Every class found along with its depth
+    */
+   public ClassClosure<String> getClosure(int depth) {
+      if(this.closure != null && this.closure.covers(depth)) {
+         return this.closure;
+      }
+      Stats.Span span = Stats.begin(Stats.Timer.SEARCH,inspectedClass);
+      ClassClosure<String> found =
+               new ClassClosure<String>(inspectedClass,depth);
+      ArrayDeque<String> queue = new ArrayDeque<String>();
+      queue.add(inspectedClass);
+      while(!queue.isEmpty()) {
+         String cls = queue.poll();
+         int d = found.getDepth(cls)+1;
+         for(String c : getReferredClasses(cls)) {
+            if(found.add(c,d) && found.expand(d)) queue.add(c);
+         }
+      }
+      span.end();
+      this.closure = found;
+      return found;
+   }
+
+   /**
+    * Get the number of classes directly referred to by the inspected class,
+    * which have the specified modifiers. Classes that aren't on the class
+    * path aren't counted, as their modifiers are unknown.
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of classes which have these modifiers.
+    */
+   public int getReferredClassesWithModifiers(int modifiers) {
+      return this.getMetrics().getReferredClassesWithModifiers(modifiers);
+   }
+
+   /**
+    * @return Counts of the inspected class' methods, fields etc. by modifier
+    */
+   public ClassMetrics getMetrics() {
+      return getMetrics(inspectedClass);
+   }
+
+   /**
+    * Get the metrics of a class. Worked out once per class, and cached.
+    * Classes that aren't on the class path have all their metrics set to 0.
+    * @param cls Name of the class
+    * @return The class' metrics
+    */
+   public static ClassMetrics getMetrics(String cls) {
+      ClassMetrics m = metrics.get(cls);
+      if(m != null) return m;
+      ClassFile cf = getClassFile(cls);
+      if(cf == null) {
+         m = ClassMetrics.unknown(cls);
+      } else {
+         String[] referred = cf.getReferredClasses();
+         int[] modifiers = new int[referred.length];
+         int n = 0;
+         for(String c : referred) {
+            ClassFile rf = getClassFile(c);
+            if(rf != null) modifiers[n++] = rf.getModifiers();
+         }
+         m = ClassMetrics.forClassFile(cf,Arrays.copyOf(modifiers,n));
+      }
+      metrics.put(cls,m);
+      return m;
+   }
+
+   /**
+    * @return A Hashtable of all the classes EVER inspected by ALL
+    * BytecodeInspector instances in the current runtime, by name.
+    */
+   public static ClassNameMap getAllInspectedClasses() {
+      return BytecodeInspector.inspectedClasses;
+   }
+}
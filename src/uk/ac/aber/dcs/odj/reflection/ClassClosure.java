@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>The result of a breadth-first search of the class graph from one class:
+ * every class found, along with its depth (the length of the shortest chain
+ * of references from the class the search started at).</p>
+ *
+ * <p>Classes are kept in the order they were found, so all the classes at a
+ * given depth come before any deeper ones. That means the answer to
+ * {@link ClassInspector#getAssociatedClasses(int)} for ANY depth up to the
+ * depth that was searched is just the start of the list, and one search can
+ * answer all of them.</p>
+ *
+ * @param <T> How classes are identified: {@link Class} objects for
+ * {@link ClassInspector}, class names for {@link BytecodeInspector}.
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassClosure<T> {
+   private final T source;
+   private final int searched;
+   private final ArrayList<T> classes = new ArrayList<T>();
+   private final HashMap<T, Integer> depths = new HashMap<T, Integer>();
+   private int[] levelEnds = new int[4];
+   private int levels = 0;
+   private boolean complete = true;
+
+   /**
+    * Start a new search result. The source class is added at depth 0.
+    * @param source The class the search starts from
+    * @param max Maximum depth of classes the search will expand (look at
+    * the references of): -1 for infinite.
+    */
+   ClassClosure(T source, int max) {
+      this.source = source;
+      this.searched = max;
+      this.add(source,0);
+   }
+
+   /**
+    * Record a class found by the search. Classes must be added in order of
+    * depth.
+    * @param cls The class found
+    * @param depth Its depth
+    * @return true if the class hadn't been found before
+    */
+   boolean add(T cls, int depth) {
+      if(depths.containsKey(cls)) return false;
+      while(levels <= depth) {
+         if(levels == levelEnds.length) {
+            levelEnds = Arrays.copyOf(levelEnds,levels*2);
+         }
+         levelEnds[levels] = classes.size();
+         levels++;
+      }
+      depths.put(cls,depth);
+      classes.add(cls);
+      levelEnds[depth]++;
+      return true;
+   }
+
+   /**
+    * @param depth Depth of a class that's just been found
+    * @return Whether the search should look at that class' references
+    */
+   boolean expand(int depth) {
+      if(searched == -1 || depth <= searched) return true;
+      complete = false;
+      return false;
+   }
+
+   /**
+    * @return The class the search started from
+    */
+   public T getSource() {
+      return source;
+   }
+
+   /**
+    * @return Number of classes found, including the source class
+    */
+   public int size() {
+      return classes.size();
+   }
+
+   /**
+    * @param cls A class
+    * @return The depth the class was found at, or -1 if it wasn't found
+    */
+   public int getDepth(T cls) {
+      Integer d = depths.get(cls);
+      return d == null ? -1 : d;
+   }
+
+   /**
+    * @return Depth of the deepest class found
+    */
+   public int getMaxDepth() {
+      return levels-1;
+   }
+
+   /**
+    * @param depth A search depth: -1 for infinite.
+    * @return Whether {@link #getClasses(int)} can answer for that depth.
+    * True for any depth if the search found every reachable class.
+    */
+   public boolean covers(int depth) {
+      if(complete) return true;
+      return depth != -1 && depth <= searched;
+   }
+
+   /**
+    * Get the classes a search of a given depth finds: the source class,
+    * plus the classes referred to by every class up to that depth.
+    * @param depth Depth of search: -1 for infinite, >= 0 for depth-limited.
+    * @return The classes, in the order they were found
+    * @throws IllegalArgumentException If this search didn't go deep enough to
+    * answer (see {@link #covers(int)}).
+    */
+   public List<T> getClasses(int depth) {
+      if(!covers(depth)) {
+         throw new IllegalArgumentException("Searched to depth "+searched+
+                  ", not "+depth);
+      }
+      // Classes at depth+1 are the ones referred to by the classes at
+      // 'depth', so they're included.
+      List<T> found = classes;
+      if(depth != -1 && depth+1 < levels) {
+         found = classes.subList(0,levelEnds[depth+1]);
+      }
+      return Collections.unmodifiableList(found);
+   }
+}
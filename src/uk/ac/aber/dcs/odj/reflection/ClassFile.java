@@ -0,0 +1,591 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * <p>A parsed {@code .class} file. This reads the same information that
+ * {@link ClassInspector} gets through reflection (superclass, interfaces,
+ * member classes, field & method types and modifiers) straight out of the
+ * class file's bytes, so the class never has to be loaded into the VM.</p>
+ *
+ * <p>Only the decoded names and modifier flags are kept: the byte buffer the
+ * class was parsed from can be thrown away (or re-used) once
+ * {@link #parse(ByteBuffer)} returns.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class ClassFile {
+   public static final int MAGIC = 0xCAFEBABE;
+
+   // Constant pool tags, from the JVM specification (section 4.4)
+   private static final int UTF8 = 1;
+   private static final int INTEGER = 3;
+   private static final int FLOAT = 4;
+   private static final int LONG = 5;
+   private static final int DOUBLE = 6;
+   private static final int CLASS = 7;
+   private static final int STRING = 8;
+   private static final int FIELD_REF = 9;
+   private static final int METHOD_REF = 10;
+   private static final int INTERFACE_METHOD_REF = 11;
+   private static final int NAME_AND_TYPE = 12;
+   private static final int METHOD_HANDLE = 15;
+   private static final int METHOD_TYPE = 16;
+   private static final int DYNAMIC = 17;
+   private static final int INVOKE_DYNAMIC = 18;
+   private static final int MODULE = 19;
+   private static final int PACKAGE = 20;
+
+   private String name;
+   private String simpleName;
+   private String superName;
+   private String declaringClass;
+   private String enclosingClass;
+   private String[] interfaces;
+   private String[] declaredClasses;
+   private String[] referredClasses;
+   private int modifiers;
+   private int constructors;
+   private String[] methodNames;
+   private int[] methodModifiers;
+   private int[] methodArgs;
+   private int[] fieldModifiers;
+
+   private ClassFile() {
+   }
+
+   /*
+    * Save everything that was parsed, for the AnalysisCache.
+    */
+   void write(AnalysisCache.Writer out) throws IOException {
+      out.writeString(name);
+      out.writeString(simpleName);
+      out.writeString(superName);
+      out.writeString(declaringClass);
+      out.writeString(enclosingClass);
+      out.writeStrings(interfaces);
+      out.writeStrings(declaredClasses);
+      out.writeStrings(referredClasses);
+      out.writeInt(modifiers);
+      out.writeInt(constructors);
+      out.writeStrings(methodNames);
+      out.writeInts(methodModifiers);
+      out.writeInts(methodArgs);
+      out.writeInts(fieldModifiers);
+   }
+
+   /*
+    * Load a class saved by write().
+    */
+   static ClassFile read(AnalysisCache.Reader in) throws IOException {
+      ClassFile cf = new ClassFile();
+      cf.name = in.readString();
+      cf.simpleName = in.readString();
+      cf.superName = in.readString();
+      cf.declaringClass = in.readString();
+      cf.enclosingClass = in.readString();
+      cf.interfaces = in.readStrings();
+      cf.declaredClasses = in.readStrings();
+      cf.referredClasses = in.readStrings();
+      cf.modifiers = in.readInt();
+      cf.constructors = in.readInt();
+      cf.methodNames = in.readStrings();
+      cf.methodModifiers = in.readInts();
+      cf.methodArgs = in.readInts();
+      cf.fieldModifiers = in.readInts();
+      return cf;
+   }
+
+   /**
+    * @return The binary name of the class, in the same form as
+    * {@link Class#getName()} (e.g. {@code java.util.Map$Entry}).
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @return The name of the class without its package, in the same form as
+    * {@link Class#getSimpleName()} (empty for anonymous classes).
+    */
+   public String getSimpleName() {
+      return simpleName;
+   }
+
+   /**
+    * @return Name of the superclass. Unlike {@link Class#getSuperclass()}
+    * this is java.lang.Object for interfaces; it's only null for
+    * java.lang.Object itself.
+    */
+   public String getSuperclass() {
+      return superName;
+   }
+
+   /**
+    * @return Names of the interfaces the class implements.
+    */
+   public String[] getInterfaces() {
+      return interfaces;
+   }
+
+   /**
+    * @return Name of the class this one is declared in, or null if this isn't
+    * a member class.
+    */
+   public String getDeclaringClass() {
+      return declaringClass;
+   }
+
+   /**
+    * @return Name of the class this one is declared in (including local and
+    * anonymous classes declared inside methods), or null for top level
+    * classes.
+    */
+   public String getEnclosingClass() {
+      return enclosingClass;
+   }
+
+   /**
+    * @return Names of the member classes declared in this class.
+    */
+   public String[] getDeclaredClasses() {
+      return declaredClasses;
+   }
+
+   /**
+    * Get the names of all the classes this class refers to: the superclass,
+    * interfaces, inner/outer classes, the types used in field and method
+    * descriptors and every class in the constant pool. Primitive types are
+    * left out and array types are replaced by their element types. The class
+    * itself is always included, same as
+    * {@link ClassInspector#getReferredClasses()}.
+    * <p>Unlike ClassInspector, which only sees the class' signature, this
+    * includes the classes used only inside method bodies (the constant
+    * pool's entries for the classes the code instantiates, casts to, calls
+    * etc.), so it's usually a superset of what reflection finds.</p>
+    * @return Array of class names
+    */
+   public String[] getReferredClasses() {
+      return referredClasses;
+   }
+
+   /**
+    * @return The class' modifiers, as constants from {@link Modifier}. For
+    * member classes these come from the InnerClasses attribute, so they
+    * match {@link Class#getModifiers()}.
+    */
+   public int getModifiers() {
+      return modifiers;
+   }
+
+   /**
+    * @return Number of constructors declared in the class
+    */
+   public int getNumberOfConstructors() {
+      return constructors;
+   }
+
+   /**
+    * @return Number of methods declared in the class (not counting
+    * constructors and static initializers, same as
+    * {@link Class#getDeclaredMethods()}).
+    */
+   public int getNumberOfMethods() {
+      return methodModifiers.length;
+   }
+
+   /**
+    * @return Number of fields declared in the class
+    */
+   public int getNumberOfFields() {
+      return fieldModifiers.length;
+   }
+
+   /**
+    * @return Names of the methods declared in the class, in declaration order
+    */
+   public String[] getMethodNames() {
+      return methodNames;
+   }
+
+   /**
+    * @param i Index of the method (same as in {@link #getMethodNames()})
+    * @return Number of parameters the method takes
+    */
+   public int getNumberOfMethodArgs(int i) {
+      return methodArgs[i];
+   }
+
+   /**
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of methods which have all of these modifiers
+    */
+   public int getMethodsWithModifiers(int modifiers) {
+      return count(methodModifiers,modifiers);
+   }
+
+   /**
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of fields which have all of these modifiers
+    */
+   public int getFieldsWithModifiers(int modifiers) {
+      return count(fieldModifiers,modifiers);
+   }
+
+   /**
+    * @return Number of methods, fields & interfaces of the class. Same as
+    * {@link ClassInspector#getClassSize()}.
+    */
+   public int getClassSize() {
+      return methodModifiers.length + fieldModifiers.length +
+               interfaces.length;
+   }
+
+   /*
+    * Modifiers of each method & field, for ClassMetrics. Not copied, so
+    * don't modify them.
+    */
+   int[] getMethodModifiers() {
+      return methodModifiers;
+   }
+
+   int[] getFieldModifiers() {
+      return fieldModifiers;
+   }
+
+   private static int count(int[] flags, int modifiers) {
+      int count = 0;
+      for(int f : flags) {
+         if((f & modifiers) == modifiers) count++;
+      }
+      return count;
+   }
+
+   /**
+    * Parse a class file. The buffer is read from its current position; its
+    * position and limit are left untouched.
+    * @param bytes The contents of a .class file
+    * @return The parsed class
+    * @throws IOException If the bytes aren't a valid class file
+    */
+   public static ClassFile parse(ByteBuffer bytes) throws IOException {
+      try {
+         return new Parser(bytes.slice()).parse();
+      } catch(RuntimeException e) {
+         // BufferUnderflowException, IndexOutOfBoundsException etc. all mean
+         // the file is truncated or the constant pool is broken
+         throw new IOException("Malformed class file: "+e,e);
+      }
+   }
+
+   /**
+    * Turn an internal name from a CONSTANT_Class entry
+    * ({@code java/lang/String}, {@code [Ljava/lang/String;}) into a class
+    * name, stripping any array dimensions.
+    * @return The class name, or null if it's an array of primitives
+    */
+   static String typeName(String internalName) {
+      if(internalName.startsWith("[")) return descriptorType(internalName);
+      return internalName.replace('/','.');
+   }
+
+   /**
+    * Turn a field descriptor ({@code Ljava/lang/String;}, {@code [[I}) into a
+    * class name, stripping any array dimensions.
+    * @return The class name, or null if it's a primitive type
+    */
+   static String descriptorType(String descriptor) {
+      int i = 0;
+      while(descriptor.charAt(i) == '[') i++;
+      if(descriptor.charAt(i) != 'L') return null;
+      return descriptor.substring(i+1,descriptor.length()-1).replace('/','.');
+   }
+
+   /*
+    * Does the actual parsing. Utf8 constants are only decoded when they're
+    * needed (class names, descriptors & attribute names): most of a constant
+    * pool is strings that we're not interested in.
+    */
+   private static final class Parser {
+      private final ByteBuffer buf;
+      private int[] offsets;
+      private String[] strings;
+      private final LinkedHashSet<String> refs = new LinkedHashSet<String>();
+      private final ClassFile cf = new ClassFile();
+
+      Parser(ByteBuffer buf) {
+         this.buf = buf;
+      }
+
+      ClassFile parse() throws IOException {
+         if(buf.getInt() != MAGIC) {
+            throw new IOException("Not a class file (bad magic number)");
+         }
+         buf.getShort(); // minor_version
+         buf.getShort(); // major_version
+         readConstantPool();
+
+         // ACC_SUPER shares its bit with Modifier.SYNCHRONIZED, and isn't
+         // reported by Class.getModifiers()
+         cf.modifiers = u2() & ~Modifier.SYNCHRONIZED;
+         cf.name = className(u2());
+         refs.add(cf.name);
+         int superIndex = u2();
+         cf.superName = superIndex == 0 ? null : className(superIndex);
+         addRef(cf.superName);
+         cf.interfaces = new String[u2()];
+         for(int i=0; i<cf.interfaces.length; i++) {
+            cf.interfaces[i] = className(u2());
+            addRef(cf.interfaces[i]);
+         }
+
+         readFields();
+         readMethods();
+         cf.declaredClasses = new String[0];
+         readAttributes(null);
+
+         // Every class the constant pool refers to
+         for(int i=1; i<offsets.length; i++) {
+            if(offsets[i] != 0 && buf.get(offsets[i]-1) == CLASS) {
+               int nameIndex = buf.getShort(offsets[i]) & 0xFFFF;
+               addRef(typeName(utf8(nameIndex)));
+            }
+         }
+
+         // Old compilers didn't write an EnclosingMethod attribute for
+         // anonymous classes, so reflection treats them as top level classes
+         if(cf.simpleName == null ||
+                  (cf.simpleName.isEmpty() && cf.enclosingClass == null)) {
+            cf.simpleName = cf.name.substring(cf.name.lastIndexOf('.')+1);
+         }
+         cf.referredClasses = refs.toArray(new String[0]);
+         return cf;
+      }
+
+      private int u2() {
+         return buf.getShort() & 0xFFFF;
+      }
+
+      /*
+       * Record the offset of each constant's data (just after its tag byte)
+       * and skip over it.
+       */
+      private void readConstantPool() throws IOException {
+         int count = u2();
+         offsets = new int[count];
+         strings = new String[count];
+         for(int i=1; i<count; i++) {
+            int tag = buf.get();
+            offsets[i] = buf.position();
+            switch(tag) {
+               case UTF8:
+                  int length = u2();
+                  buf.position(buf.position()+length);
+                  break;
+               case CLASS: case STRING: case METHOD_TYPE:
+               case MODULE: case PACKAGE:
+                  buf.position(buf.position()+2);
+                  break;
+               case METHOD_HANDLE:
+                  buf.position(buf.position()+3);
+                  break;
+               case INTEGER: case FLOAT: case FIELD_REF: case METHOD_REF:
+               case INTERFACE_METHOD_REF: case NAME_AND_TYPE:
+               case DYNAMIC: case INVOKE_DYNAMIC:
+                  buf.position(buf.position()+4);
+                  break;
+               case LONG: case DOUBLE:
+                  // 8-byte constants take up two slots in the pool
+                  buf.position(buf.position()+8);
+                  i++;
+                  break;
+               default:
+                  throw new IOException("Unknown constant pool tag "+tag+
+                           " at index "+i);
+            }
+         }
+      }
+
+      /*
+       * Decode a CONSTANT_Utf8 entry. Class files use "modified" UTF-8 (the
+       * same as DataInput.readUTF()), which is never more than 3 bytes per
+       * char.
+       */
+      private String utf8(int index) throws IOException {
+         if(strings[index] != null) return strings[index];
+         int offset = offsets[index];
+         if(offset == 0 || buf.get(offset-1) != UTF8) {
+            throw new IOException("Constant "+index+" is not a Utf8 entry");
+         }
+         int length = buf.getShort(offset) & 0xFFFF;
+         char[] chars = new char[length];
+         int n = 0;
+         for(int i=offset+2, end=offset+2+length; i<end; n++) {
+            int b = buf.get(i++) & 0xFF;
+            if(b < 0x80) {
+               chars[n] = (char) b;
+            } else if((b & 0xE0) == 0xC0) {
+               chars[n] = (char) (((b & 0x1F) << 6) | (buf.get(i++) & 0x3F));
+            } else {
+               chars[n] = (char) (((b & 0x0F) << 12) |
+                        ((buf.get(i++) & 0x3F) << 6) | (buf.get(i++) & 0x3F));
+            }
+         }
+         strings[index] = new String(chars,0,n);
+         return strings[index];
+      }
+
+      private String className(int index) throws IOException {
+         int offset = offsets[index];
+         if(offset == 0 || buf.get(offset-1) != CLASS) {
+            throw new IOException("Constant "+index+" is not a Class entry");
+         }
+         return utf8(buf.getShort(offset) & 0xFFFF).replace('/','.');
+      }
+
+      private void addRef(String cls) {
+         if(cls != null) refs.add(cls);
+      }
+
+      private void readFields() throws IOException {
+         cf.fieldModifiers = new int[u2()];
+         for(int i=0; i<cf.fieldModifiers.length; i++) {
+            cf.fieldModifiers[i] = u2();
+            u2(); // name
+            addRef(descriptorType(utf8(u2())));
+            skipAttributes();
+         }
+      }
+
+      private void readMethods() throws IOException {
+         int count = u2();
+         ArrayList<String> names = new ArrayList<String>(count);
+         int[] mods = new int[count];
+         int[] args = new int[count];
+         int methods = 0;
+         for(int i=0; i<count; i++) {
+            int access = u2();
+            String name = utf8(u2());
+            int argc = methodDescriptor(utf8(u2()));
+            readAttributes(name);
+
+            // Constructors & static initializers aren't methods as far as
+            // reflection is concerned
+            if(name.equals("<init>")) {
+               cf.constructors++;
+            } else if(!name.equals("<clinit>")) {
+               names.add(name);
+               mods[methods] = access;
+               args[methods++] = argc;
+            }
+         }
+         cf.methodNames = names.toArray(new String[0]);
+         cf.methodModifiers = Arrays.copyOf(mods,methods);
+         cf.methodArgs = Arrays.copyOf(args,methods);
+      }
+
+      /*
+       * Add the parameter & return types of a method descriptor, e.g.
+       * (ILjava/lang/String;[J)V, to the referred classes. Returns the number
+       * of parameters.
+       */
+      private int methodDescriptor(String desc) {
+         int args = 0;
+         int end = desc.indexOf(')');
+         int i = 1;
+         while(i < end) {
+            i = descriptorRef(desc,i);
+            args++;
+         }
+         descriptorRef(desc,end+1);
+         return args;
+      }
+
+      /*
+       * Add the type starting at desc[i] to the referred classes and return
+       * the index just after it.
+       */
+      private int descriptorRef(String desc, int i) {
+         while(desc.charAt(i) == '[') i++;
+         if(desc.charAt(i) == 'L') {
+            int end = desc.indexOf(';',i);
+            addRef(desc.substring(i+1,end).replace('/','.'));
+            return end+1;
+         }
+         return i+1;
+      }
+
+      private void skipAttributes() {
+         int count = u2();
+         for(int i=0; i<count; i++) {
+            u2();
+            int length = buf.getInt();
+            buf.position(buf.position()+length);
+         }
+      }
+
+      /*
+       * Read the attributes table starting at the buffer's current position.
+       * "method" is the name of the method the attributes belong to, or null
+       * for the class' own attributes.
+       */
+      private void readAttributes(String method) throws IOException {
+         int count = u2();
+         for(int i=0; i<count; i++) {
+            String attr = utf8(u2());
+            int length = buf.getInt();
+            int end = buf.position()+length;
+            if(method != null && attr.equals("Exceptions")) {
+               int n = u2();
+               for(int j=0; j<n; j++) addRef(className(u2()));
+            } else if(method == null && attr.equals("InnerClasses")) {
+               readInnerClasses();
+            } else if(method == null && attr.equals("EnclosingMethod")) {
+               cf.enclosingClass = className(u2());
+               addRef(cf.enclosingClass);
+            }
+            buf.position(end);
+         }
+      }
+
+      /*
+       * The InnerClasses attribute lists every nested class the class file
+       * refers to. The entries we care about are the one describing this
+       * class (its real modifiers, simple name and declaring class) and the
+       * ones for member classes declared directly inside this class.
+       */
+      private void readInnerClasses() throws IOException {
+         int count = u2();
+         ArrayList<String> declared = new ArrayList<String>();
+         for(int i=0; i<count; i++) {
+            int innerIndex = u2();
+            int outerIndex = u2();
+            int nameIndex = u2();
+            int access = u2();
+            String inner = className(innerIndex);
+            String outer = outerIndex == 0 ? null : className(outerIndex);
+            if(inner.equals(cf.name)) {
+               cf.modifiers = access;
+               cf.simpleName = nameIndex == 0 ? "" : utf8(nameIndex);
+               if(outer != null) {
+                  cf.declaringClass = outer;
+                  cf.enclosingClass = outer;
+                  addRef(outer);
+               }
+            } else if(cf.name.equals(outer)) {
+               declared.add(inner);
+               addRef(inner);
+            }
+         }
+         cf.declaredClasses = declared.toArray(new String[0]);
+      }
+   }
+}
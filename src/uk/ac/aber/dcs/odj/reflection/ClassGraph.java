@@ -0,0 +1,603 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>Compact store for the graph of references between classes. Every class
+ * is given an int id the first time it's seen, and references are kept as
+ * pairs of ids rather than as objects: adding an edge just appends two ints
+ * to a buffer.</p>
+ *
+ * <p>Each thread adding edges has a buffer of its own, so inspectors on
+ * different threads never wait for each other (or for one lock on the whole
+ * graph) to record what they've found, and no edges can be lost. Looking up
+ * a class' id doesn't lock anything either; only giving a new class an id
+ * does. Once a thread has finished, its buffer is dropped the next time the
+ * buffers are gathered up, so a long-running process whose threads come and
+ * go (e.g. the {@link AnalysisServer}) doesn't collect more and more of
+ * them.</p>
+ *
+ * <p>When the graph is queried the threads' buffers are gathered up and
+ * sorted into compressed sparse row (CSR) form, in both directions:
+ * {@link #forward()} lists what each class refers to, {@link #reverse()}
+ * lists what refers to each class. An {@link Adjacency} is never changed
+ * once it's built, so it can be read without any locking while more edges
+ * are added; it's rebuilt the next time it's asked for after the graph has
+ * changed. Edges which are already in the last one built aren't added
+ * again, so recording the same references twice doesn't cost a rebuild.</p>
+ *
+ * <p>Classes whose references have all been added are marked as explored,
+ * so that {@link #reachability()} knows which classes it can answer
+ * for. The components and the reachability index are worked out at most
+ * once for each Adjacency, the first time they're asked for, and belong to
+ * it: once the graph's been built, take its {@link #forward()} and ask
+ * that, and nothing added to the graph afterwards can throw them
+ * away.</p>
+ *
+ * <p>A search from a class also records the class as associated with
+ * everything it found (see {@link #associate(int, int[])}). These aren't
+ * references, so they're kept apart from the edges: the components, the
+ * reachability index and queries only follow references, but the classes
+ * listed as referring to a class by {@link #referrers(Adjacency, int)}
+ * (i.e. edges.txt and the connections column) include them.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassGraph {
+   // Marks a class as explored, in place of the 'to' half of an edge
+   private static final int EXPLORED = -1;
+
+   private final ConcurrentHashMap<String, Integer> ids =
+            new ConcurrentHashMap<String, Integer>();
+   private String[] names = new String[64];
+   private Class[] types = new Class[64];
+   private boolean[] explored = new boolean[64];
+   private int size = 0;
+
+   // Every thread's buffer, until the thread's finished & it's been emptied
+   private final CopyOnWriteArrayList<EdgeBuffer> buffers =
+            new CopyOnWriteArrayList<EdgeBuffer>();
+   private final ThreadLocal<EdgeBuffer> buffer =
+            new ThreadLocal<EdgeBuffer>() {
+      @Override
+      protected EdgeBuffer initialValue() {
+         EdgeBuffer b = new EdgeBuffer();
+         buffers.add(b);
+         return b;
+      }
+   };
+
+   // Edges gathered from the buffers, as (from, to) pairs
+   private int[] edges = new int[128];
+   private int edgeCount = 0;
+
+   private volatile Adjacency forward;
+
+   // Classes recorded as associated with each source by a search from it,
+   // as sorted ids: sources[i] is associated with everything in found[i]
+   private final HashMap<Integer, Integer> associations =
+            new HashMap<Integer, Integer>();
+   private int[] sources = new int[16];
+   private int[][] found = new int[16][];
+   private int associated = 0;
+
+   /**
+    * Get the id of a class, giving it a new one if it hasn't been seen yet.
+    * @param name Name of the class
+    * @return The class' id
+    */
+   public int intern(String name) {
+      Integer id = ids.get(name);
+      if(id != null) return id;
+      synchronized(this) {
+         return add(name,null);
+      }
+   }
+
+   /**
+    * Same as {@link #intern(String)}, but also remembers the Class object so
+    * it can be given back by {@link #getType(int)}. Classes are identified
+    * by name, so if two class loaders have loaded a class with the same
+    * name (or the class was added by name first), only the first one is
+    * remembered.
+    * @param cls The class
+    * @return The class' id
+    */
+   public int intern(Class cls) {
+      Integer id = ids.get(cls.getName());
+      if(id != null) return id;
+      synchronized(this) {
+         return add(cls.getName(),cls);
+      }
+   }
+
+   /*
+    * The ids map is only ever added to with the lock held, but it's read
+    * without it, so everything else about a class is set up before its id
+    * goes in.
+    */
+   private int add(String name, Class cls) {
+      Integer id = ids.get(name);
+      if(id != null) return id;
+      if(size == names.length) {
+         names = Arrays.copyOf(names,size*2);
+         types = Arrays.copyOf(types,size*2);
+         explored = Arrays.copyOf(explored,size*2);
+      }
+      names[size] = name;
+      types[size] = cls;
+      ids.put(name,size);
+      return size++;
+   }
+
+   /**
+    * @param name Name of a class
+    * @return The class' id, or -1 if it isn't in the graph
+    */
+   public int getId(String name) {
+      Integer id = ids.get(name);
+      return id == null ? -1 : id;
+   }
+
+   /**
+    * @param id Id of a class
+    * @return Name of the class
+    */
+   public synchronized String getName(int id) {
+      return names[id];
+   }
+
+   /**
+    * @param id Id of a class
+    * @return The Class object for the class, or null if it was only added
+    * by name.
+    */
+   public synchronized Class getType(int id) {
+      return types[id];
+   }
+
+   /**
+    * @return Number of classes in the graph
+    */
+   public synchronized int size() {
+      return size;
+   }
+
+   /**
+    * Record that one class refers to another. Safe to call from any number
+    * of threads at once: each one adds to its own buffer.
+    * @param from Id of the class which has the reference
+    * @param to Id of the class being referred to
+    */
+   public void addEdge(int from, int to) {
+      Adjacency f = forward;
+      if(f != null && from < f.size() && to < f.size() && f.contains(from,to)) {
+         Stats.count(Stats.Counter.EDGES_SKIPPED);
+         return;
+      }
+      Stats.count(Stats.Counter.EDGES_ADDED);
+      buffer.get().add(from,to);
+   }
+
+   /**
+    * Record that all the references a class makes have been added.
+    * @param id Id of the class
+    */
+   public void setExplored(int id) {
+      buffer.get().add(id,EXPLORED);
+   }
+
+   /**
+    * Record that a search from one class found some others, the same as
+    * the recursive search recorded the class it started from as referring
+    * to everything it found. Recording the same class again adds to what
+    * it's associated with.
+    * @param from Id of the class the search started from
+    * @param to Ids of the classes it found
+    */
+   public void associate(int from, int[] to) {
+      int[] sorted = unique(to.clone(),to.length);
+      synchronized(associations) {
+         Integer i = associations.get(from);
+         if(i == null) {
+            if(associated == sources.length) {
+               sources = Arrays.copyOf(sources,associated*2);
+               found = Arrays.copyOf(found,associated*2);
+            }
+            associations.put(from,associated);
+            sources[associated] = from;
+            found[associated++] = sorted;
+         } else if(!containsAll(found[i],sorted)) {
+            int[] old = found[i];
+            int[] both = Arrays.copyOf(old,old.length+sorted.length);
+            System.arraycopy(sorted,0,both,old.length,sorted.length);
+            found[i] = unique(both,both.length);
+         }
+      }
+   }
+
+   /**
+    * Every class which refers to a class, or which a search has found it
+    * from (see {@link #associate(int, int[])}).
+    * @param reverse Adjacency lists of which classes refer to each class,
+    * from {@link #reverse()}
+    * @param v Id of a class
+    * @return Ids of the classes, sorted
+    */
+   public int[] referrers(Adjacency reverse, int v) {
+      int[] direct = reverse.neighbours(v);
+      int count;
+      int[] sources;
+      int[][] found;
+      synchronized(associations) {
+         count = associated;
+         sources = this.sources;
+         found = this.found;
+      }
+      int[] all = Arrays.copyOf(direct,direct.length+count);
+      int n = direct.length;
+      for(int i=0; i<count; i++) {
+         if(Arrays.binarySearch(found[i],v) >= 0 &&
+                  Arrays.binarySearch(direct,sources[i]) < 0) {
+            all[n++] = sources[i];
+         }
+      }
+      return n == direct.length ? direct : unique(all,n);
+   }
+
+   /*
+    * Sort the first n ids & drop the duplicates.
+    */
+   private static int[] unique(int[] ids, int n) {
+      Arrays.sort(ids,0,n);
+      int m = 0;
+      for(int i=0; i<n; i++) {
+         if(m == 0 || ids[i] != ids[m-1]) ids[m++] = ids[i];
+      }
+      return m == ids.length ? ids : Arrays.copyOf(ids,m);
+   }
+
+   private static boolean containsAll(int[] sorted, int[] ids) {
+      for(int id : ids) {
+         if(Arrays.binarySearch(sorted,id) < 0) return false;
+      }
+      return true;
+   }
+
+   /**
+    * @param id Id of a class
+    * @return Whether all the references the class makes have been added
+    */
+   public synchronized boolean isExplored(int id) {
+      update();
+      return explored[id];
+   }
+
+   /**
+    * @return Adjacency lists of what each class refers to
+    */
+   public Adjacency forward() {
+      Adjacency f = forward;
+      if(f != null && !pending()) return f;
+      synchronized(this) {
+         update();
+         return forward;
+      }
+   }
+
+   /**
+    * @return Adjacency lists of which classes refer to each class
+    */
+   public Adjacency reverse() {
+      return forward().inverse();
+   }
+
+   /**
+    * @return The graph's strongly connected components (i.e. its cycles)
+    * as it is now (see {@link Adjacency#components()})
+    */
+   public StronglyConnectedComponents components() {
+      return forward().components();
+   }
+
+   /**
+    * @return Index of which classes each class reaches, directly or not, as
+    * the graph is now (see {@link Adjacency#reachability()})
+    */
+   public ReachabilityIndex reachability() {
+      return forward().reachability();
+   }
+
+   /**
+    * @return Number of distinct edges in the graph
+    */
+   public int getEdgeCount() {
+      return forward().getEdgeCount();
+   }
+
+   private boolean pending() {
+      for(EdgeBuffer b : buffers) {
+         if(b.count != 0) return true;
+      }
+      return false;
+   }
+
+   /*
+    * Gather up everything the threads have added since last time, and
+    * rebuild whatever it's changed. Called with the lock held. The buffers
+    * of threads which have finished can't be added to any more, so once
+    * they're empty they're dropped.
+    */
+   private void update() {
+      boolean added = false;
+      boolean marked = false;
+      for(EdgeBuffer b : buffers) {
+         // Checked first, so nothing can be added after it's been emptied
+         boolean abandoned = b.isAbandoned();
+         synchronized(b) {
+            for(int i=0; i<b.count; i++) {
+               int from = b.pairs[i*2];
+               int to = b.pairs[i*2+1];
+               if(to == EXPLORED) {
+                  marked |= !explored[from];
+                  explored[from] = true;
+                  continue;
+               }
+               if(edgeCount*2 == edges.length) {
+                  edges = Arrays.copyOf(edges,edges.length*2);
+               }
+               edges[edgeCount*2] = from;
+               edges[edgeCount*2+1] = to;
+               edgeCount++;
+               added = true;
+            }
+            b.count = 0;
+         }
+         if(abandoned) buffers.remove(b);
+      }
+      if(added || forward == null) {
+         build();
+      } else if(marked) {
+         // Same edges, so only the reachability index can change
+         forward = forward.explored(Arrays.copyOf(explored,size));
+      }
+   }
+
+   /*
+    * Sort the edge buffer into CSR form in both directions. Duplicate edges
+    * are dropped, and the buffer is shrunk down to the distinct edges so it
+    * doesn't keep growing if the same references are added again.
+    */
+   private void build() {
+      boolean[] done = Arrays.copyOf(explored,size);
+      Adjacency f = new Adjacency(size,edges,edgeCount,0,done);
+      Adjacency r = new Adjacency(size,edges,edgeCount,1,null);
+      f.inverse = r;
+      r.inverse = f;
+      edgeCount = f.getEdgeCount();
+      int[] compact = new int[Math.max(128,edgeCount*2)];
+      for(int v=0, e=0; v<size; v++) {
+         for(int i=f.start(v); i<f.end(v); i++) {
+            compact[e++] = v;
+            compact[e++] = f.target(i);
+         }
+      }
+      edges = compact;
+      forward = f;
+   }
+
+   /*
+    * The edges one thread has added since the graph was last updated. Only
+    * that thread adds to it, so its lock is hardly ever contended.
+    */
+   private static final class EdgeBuffer {
+      private final WeakReference<Thread> owner =
+               new WeakReference<Thread>(Thread.currentThread());
+      int[] pairs = new int[256];
+      volatile int count = 0;
+
+      /*
+       * Whether the thread which made the buffer has finished.
+       */
+      boolean isAbandoned() {
+         Thread t = owner.get();
+         return t == null || !t.isAlive();
+      }
+
+      synchronized void add(int from, int to) {
+         if(count*2 == pairs.length) {
+            pairs = Arrays.copyOf(pairs,pairs.length*2);
+         }
+         pairs[count*2] = from;
+         pairs[count*2+1] = to;
+         count++;
+      }
+   }
+
+   /**
+    * <p>One direction of the graph in compressed sparse row form: the
+    * neighbours of class v are {@code target(start(v))} up to (but not
+    * including) {@code target(end(v))}, sorted by id.</p>
+    *
+    * <p>Covers the classes that were in the graph when it was built: ids
+    * added since then have no neighbours. An Adjacency never changes, so
+    * anything worked out from it (its components, and its reachability
+    * index) is only worked out once.</p>
+    */
+   public static final class Adjacency {
+      private final int[] offsets;
+      private final int[] targets;
+      // Only going forwards: null in the reverse direction
+      private final boolean[] explored;
+      private Adjacency inverse;
+      private StronglyConnectedComponents components;
+      private ReachabilityIndex reachability;
+
+      /*
+       * Counting sort of the edge pairs on the 'key' half of each pair (0 =
+       * from, 1 = to), then sort & de-duplicate each row.
+       */
+      Adjacency(int size, int[] edges, int count, int key,
+               boolean[] explored) {
+         this.explored = explored;
+         int[] offsets = new int[size+1];
+         for(int e=0; e<count; e++) offsets[edges[e*2+key]+1]++;
+         for(int v=0; v<size; v++) offsets[v+1] += offsets[v];
+         int[] targets = new int[count];
+         int[] fill = Arrays.copyOf(offsets,size);
+         for(int e=0; e<count; e++) {
+            targets[fill[edges[e*2+key]]++] = edges[e*2+1-key];
+         }
+
+         int n = 0;
+         for(int v=0; v<size; v++) {
+            int start = offsets[v];
+            int end = offsets[v+1];
+            Arrays.sort(targets,start,end);
+            offsets[v] = n;
+            for(int i=start; i<end; i++) {
+               if(i == start || targets[i] != targets[i-1]) {
+                  targets[n++] = targets[i];
+               }
+            }
+         }
+         offsets[size] = n;
+         this.offsets = offsets;
+         this.targets = n == count ? targets : Arrays.copyOf(targets,n);
+      }
+
+      private Adjacency(int[] offsets, int[] targets, boolean[] explored) {
+         this.offsets = offsets;
+         this.targets = targets;
+         this.explored = explored;
+      }
+
+      /*
+       * The same edges (in both directions), with more classes marked as
+       * explored.
+       */
+      synchronized Adjacency explored(boolean[] explored) {
+         Adjacency f = new Adjacency(offsets,targets,explored);
+         Adjacency r = new Adjacency(inverse.offsets,inverse.targets,null);
+         f.inverse = r;
+         r.inverse = f;
+         if(components != null) {
+            f.components = components;
+            r.components = inverse.components;
+         }
+         return f;
+      }
+
+      /**
+       * @return Number of classes covered
+       */
+      public int size() {
+         return offsets.length-1;
+      }
+
+      /**
+       * @return The same graph, built at the same time, in the other
+       * direction
+       */
+      public Adjacency inverse() {
+         return inverse;
+      }
+
+      /**
+       * @return Total number of edges
+       */
+      public int getEdgeCount() {
+         return targets.length;
+      }
+
+      /**
+       * @param v Id of a class
+       * @return Index of the class' first neighbour
+       */
+      public int start(int v) {
+         return v < size() ? offsets[v] : 0;
+      }
+
+      /**
+       * @param v Id of a class
+       * @return Index just after the class' last neighbour
+       */
+      public int end(int v) {
+         return v < size() ? offsets[v+1] : 0;
+      }
+
+      /**
+       * @param v Id of a class
+       * @return Number of neighbours of the class
+       */
+      public int degree(int v) {
+         return end(v)-start(v);
+      }
+
+      /**
+       * @param i Index between start(v) and end(v) for some class v
+       * @return The id of that neighbour
+       */
+      public int target(int i) {
+         return targets[i];
+      }
+
+      /**
+       * @param v Id of a class
+       * @return The ids of its neighbours (a copy)
+       */
+      public int[] neighbours(int v) {
+         return Arrays.copyOfRange(targets,start(v),end(v));
+      }
+
+      /**
+       * @param v Id of a class
+       * @param w Id of another class
+       * @return Whether there's an edge from v to w
+       */
+      public boolean contains(int v, int w) {
+         return Arrays.binarySearch(targets,start(v),end(v),w) >= 0;
+      }
+
+      /**
+       * @param v Id of a class
+       * @return Whether all the references the class makes had been added
+       * when this was built. Always false going backwards, as nothing says
+       * when everything which refers to a class has been found.
+       */
+      public boolean isExplored(int v) {
+         return explored != null && v < size() && explored[v];
+      }
+
+      /**
+       * @return The strongly connected components of the graph in this
+       * direction, worked out the first time they're asked for
+       */
+      public synchronized StronglyConnectedComponents components() {
+         if(components == null) {
+            components = new StronglyConnectedComponents(this);
+         }
+         return components;
+      }
+
+      /**
+       * @return Index of which classes each class reaches in this
+       * direction, directly or not, worked out the first time it's asked
+       * for
+       */
+      public synchronized ReachabilityIndex reachability() {
+         if(reachability == null) {
+            reachability = new ReachabilityIndex(this,components(),
+                     explored != null ? explored : new boolean[size()]);
+         }
+         return reachability;
+      }
+   }
+}
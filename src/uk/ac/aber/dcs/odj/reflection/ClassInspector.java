@@ -6,9 +6,12 @@ package uk.ac.aber.dcs.odj.reflection;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * <p>Class for analyzing other classes (recursively). Extracts a variety of
@@ -25,14 +28,18 @@ import java.util.Iterator;
  */
 public class ClassInspector {
    private static final ClassMap inspectedClasses = new ClassMap();
+   private static volatile ForkJoinPool pool = null;
+   private static volatile ClassLoader loader = null;
+   private static final ReferenceCache cache =
+            new ReferenceCache(ReferenceCache.DEFAULT_CAPACITY);
    private Class inspectedClass;
    private Class[] referredClasses;
-   private Class[] associatedClasses;
-   private int lastDepth = 0;
+   private ClassClosure<Class> closure;
 
    /**
     * Find the class with a specified name. Throws an exception if no such
-    * class can be found in the running VM's classpath.
+    * class can be found by the class loader (see
+    * {@link #setClassLoader(ClassLoader)}).
     * @param cls Name of the class this ClassInspector will be inspecting
     * @throws ClassNotFoundException
     */
@@ -45,9 +52,27 @@ public class ClassInspector {
        * are accidentally initialized (stops them throwing exceptions when
        * reflected upon etc.)
        */
-      this(Class.forName(cls,false,null));
+      this(Class.forName(cls,false,loader));
    }
    
+   /**
+    * Set the class loader that classes are looked up with by name. By
+    * default that's the bootstrap loader, which can only find the JDK's own
+    * classes; a {@link ClassPathLoader} can find classes in any jar.
+    * @param cl The class loader to use, or null for the bootstrap loader
+    */
+   public static void setClassLoader(ClassLoader cl) {
+      loader = cl;
+   }
+
+   /**
+    * @return The class loader classes are looked up with, or null if it's
+    * the bootstrap loader.
+    */
+   public static ClassLoader getClassLoader() {
+      return loader;
+   }
+
    /**
     * @param cls The Class this ClassInspector will be inspecting
     */
@@ -62,7 +87,7 @@ public class ClassInspector {
     * @return Number of declared fields owned by the inspected class
     */
    public int getNumberOfFields() {
-      return inspectedClass.getDeclaredFields().length;
+      return this.getMetrics().getNumberOfFields();
    }
 
    /**
@@ -72,7 +97,7 @@ public class ClassInspector {
     * @return The number of methods declared in the inspected class
     */
    public int getNumberOfMethods() {
-      return inspectedClass.getDeclaredMethods().length;
+      return this.getMetrics().getNumberOfMethods();
    }
 
    /**
@@ -86,7 +111,7 @@ public class ClassInspector {
     * @return The number of constructors in the inspected class
     */
    public int getNumberOfConstructors() {
-      return inspectedClass.getDeclaredConstructors().length;
+      return this.getMetrics().getNumberOfConstructors();
    }
 
    /**
@@ -132,13 +157,15 @@ public class ClassInspector {
    /**
     * Get all the "inner" Classes a specified class refers to: gets all the
     * Method argument types, return types and field types used by the class.
-    * @param className
+    * @param methods The class' declared methods
+    * @param fields The class' declared fields
     * @return
     */
-   private static final HashSet<Class> getInnerClasses(Class className) {
+   private static final HashSet<Class> getInnerClasses(Method[] methods,
+            Field[] fields) {
       HashSet<Class> innerClasses = new HashSet<Class>();
       
-      for(Method m : className.getDeclaredMethods()) {
+      for(Method m : methods) {
          innerClasses.add(m.getReturnType());
          for(Class c : m.getExceptionTypes()) {
             innerClasses.add(c);
@@ -148,7 +175,7 @@ public class ClassInspector {
          }
       }
       
-      for(Field f : className.getDeclaredFields()) {
+      for(Field f : fields) {
          innerClasses.add(f.getType());
       }
       
@@ -197,81 +224,102 @@ public class ClassInspector {
       /*
        * It's likely this will be called multiple times but will always return
        * the same result so keep the result cached in the "referredClasses"
-       * field.
+       * field. The reflection itself is only done once per class (for ALL
+       * inspectors) thanks to the global cache.
        */
       if(this.referredClasses == null) {
-         Class source = this.inspectedClass;
-         HashSet<Class> associatedClasses = new HashSet<Class>();
-         
-         // Add the actual class itself. This makes sense when making network
-         // graphs showing connectivity.
-         associatedClasses.add(source);
-         
-         // If this class is internal to another class (Delegate class),
-         // get its parent.
-         if(source.getDeclaringClass() != null) {
-            associatedClasses.add(source.getDeclaringClass());
-         }
-         
-         // Get all the classes this class has declared as members. 
-         for(Class c : source.getDeclaredClasses()) {
-            associatedClasses.add(c);
-         }
-         
-         // Get any interfaces this class implements.
-         for(Class c : source.getInterfaces()) {
-            associatedClasses.add(c);
-         }
-         
-         /*
-          * Add any other classes (NOTE: may already be done in getInnerClasses
-          * - still unsure how getDeclaredX() and getX() methods differ)
-          */
-         associatedClasses.addAll(Arrays.asList(source.getClasses()));
-         
-         // Get the superclass (what this class extends).
-         associatedClasses.add(source.getSuperclass());
-         
-         // Get the enclosing class.
-         associatedClasses.add(source.getEnclosingClass());
-         
-         // Get all the classes used as method arguments and return values.
-         associatedClasses.addAll(getInnerClasses(source));
-         
-         /*
-          * Remove any classes that are primitive (int, bool, null, void etc.)
-          * as well as any Arrays, from the list.
-          */
-         Iterator<Class> iter;
-         for(iter = associatedClasses.iterator(); iter.hasNext();) {
-            Class c = iter.next();
-            if(c == null || c.isPrimitive() || c.isArray()) {
-               iter.remove();
-            }
-         }
-         
-         /*
-          * Add all the classes we've just picked up to a global, static set
-          * of classes - this can be used at the end of inspecting
-          * all the classes we want, to generate nodes/edges for a network
-          * graph which will show the association/connectivity between classes
-          * in the system as a whole.
-          */
-         ClassInspector.inspectedClasses.addAll(associatedClasses,source);
-         
-         this.associatedClasses = associatedClasses.toArray(new Class[0]);
+         this.referredClasses =
+                  cache.get(this.inspectedClass).getReferredClasses();
       }
 
-      return this.associatedClasses;
+      return this.referredClasses;
+   }
+   
+   /*
+    * Does the actual work for getReferredClasses(): called by the
+    * ReferenceCache when a class isn't cached.
+    */
+   static Class[] findReferredClasses(Class source, Method[] methods,
+            Field[] fields) {
+      Class[] referred = collectReferredClasses(source,methods,fields);
+      
+      /*
+       * Add all the classes we've just picked up to a global, static set
+       * of classes - this can be used at the end of inspecting
+       * all the classes we want, to generate nodes/edges for a network
+       * graph which will show the association/connectivity between classes
+       * in the system as a whole.
+       */
+      ClassInspector.inspectedClasses.addAll(Arrays.asList(referred),source);
+      
+      return referred;
+   }
+   
+   /*
+    * Same as findReferredClasses(), but doesn't record anything in the
+    * global table (so nothing keeps hold of the classes).
+    */
+   static Class[] collectReferredClasses(Class source, Method[] methods,
+            Field[] fields) {
+      HashSet<Class> associatedClasses = new HashSet<Class>();
+      
+      // Add the actual class itself. This makes sense when making network
+      // graphs showing connectivity.
+      associatedClasses.add(source);
+      
+      // If this class is internal to another class (Delegate class),
+      // get its parent.
+      if(source.getDeclaringClass() != null) {
+         associatedClasses.add(source.getDeclaringClass());
+      }
+      
+      // Get all the classes this class has declared as members. 
+      for(Class c : source.getDeclaredClasses()) {
+         associatedClasses.add(c);
+      }
+      
+      // Get any interfaces this class implements.
+      for(Class c : source.getInterfaces()) {
+         associatedClasses.add(c);
+      }
+      
+      /*
+       * Add any other classes (NOTE: may already be done in getInnerClasses
+       * - still unsure how getDeclaredX() and getX() methods differ)
+       */
+      associatedClasses.addAll(Arrays.asList(source.getClasses()));
+      
+      // Get the superclass (what this class extends).
+      associatedClasses.add(source.getSuperclass());
+      
+      // Get the enclosing class.
+      associatedClasses.add(source.getEnclosingClass());
+      
+      // Get all the classes used as method arguments and return values.
+      associatedClasses.addAll(getInnerClasses(methods,fields));
+      
+      /*
+       * Remove any classes that are primitive (int, bool, null, void etc.)
+       * as well as any Arrays, from the list.
+       */
+      Iterator<Class> iter;
+      for(iter = associatedClasses.iterator(); iter.hasNext();) {
+         Class c = iter.next();
+         if(c == null || c.isPrimitive() || c.isArray()) {
+            iter.remove();
+         }
+      }
+      
+      return associatedClasses.toArray(new Class[0]);
    }
    
    /**
-    * Recursively get a list of class names 'associated' with the specified
+    * Get a list of class names 'associated' with the specified
     * class: this gets the classes reffered to by the classes reffered to by
     * the classes refferred to [...] referred to by the specified class.
     * @param className Name of the class to inspect
     * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
-    * recursive search.
+    * search.
     * @return Array of strings representing all class names found
     */
    public static String[] getAssociatedClassesAsStrings(String className,
@@ -285,11 +333,11 @@ public class ClassInspector {
    }
    
    /**
-    * Recursively get a list of class names associated with the inspected
+    * Get a list of class names associated with the inspected
     * class: this gets the classes referred to by the classes referred to [...]
     * referred to by the inspected class.
     * @param depth Depth of search: -1 for infinite >= 0 for depth-limited
-    * recursive search.
+    * search.
     * @return Array of strings representing all class names found
     */
    public String[] getAssociatedClassesAsStrings(int depth) {
@@ -297,10 +345,10 @@ public class ClassInspector {
    }
    
    /**
-    * Recursively search for classes which are indirectly connected to the
+    * Search for classes which are indirectly connected to the
     * specified class.
     * @param source The class to inspect/start the search from
-    * @param depth Depth of recursion: -1 for infinite, >= 0 for a depth-limited
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
     * search
     * @return All the classes used by both the inspected class and its connected
     * classes, up to the depth specified by 'depth' parameter.
@@ -309,82 +357,126 @@ public class ClassInspector {
       return new ClassInspector(source).getAssociatedClasses(depth);
    }
    
+   /**
+    * Search for classes which are indirectly connected to the inspected
+    * class.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search
+    * @return All the classes used by both the inspected class and its connected
+    * classes, up to the depth specified by the 'depth' parameter.
+    */
+   public Class[] getAssociatedClasses(int depth) {
+      return associate(this.getClosure(depth).getClasses(depth))
+               .toArray(new Class[0]);
+   }
+   
+   /**
+    * Count the classes which are indirectly connected to the inspected
+    * class. For an infinite search this is looked up in the reachability
+    * index of the global table, as long as everything the class reaches has
+    * been inspected already, rather than searching again.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search
+    * @return Same as {@code getAssociatedClasses(depth).length}
+    */
+   public int getNumberOfAssociatedClasses(int depth) {
+      if(depth == -1) {
+         int n = inspectedClasses.associateReachable(inspectedClass);
+         if(n != -1) return n;
+      }
+      return associate(this.getClosure(depth).getClasses(depth)).size();
+   }
+   
    /*
-    * Used internally to keep track of the recursive search.
+    * Record the inspected class as associated with the classes a search
+    * from it found, in the global table: edges.txt and the 'connections'
+    * column list them along with the references.
     */
-   private final static Class[] getAssociatedClasses(Class source,
-            HashSet<Class> checked,int depth,int max) {
-      return new ClassInspector(source).getAssociatedClasses(checked,depth,max);
+   private Collection<Class> associate(Collection<Class> classes) {
+      inspectedClasses.associateAll(classes,inspectedClass);
+      return classes;
    }
    
    /**
-    * Recursively search for classes which are indirectly connected to the
-    * inspected class.
-    * @param depth Depth of recursion: -1 for infinite, >= 0 for a depth-limited
+    * Check whether a class is indirectly connected to the inspected class,
+    * using the reachability index where possible (see
+    * {@link #getNumberOfAssociatedClasses(int)}).
+    * @param cls The class to look for
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
     * search
-    * @return All the classes used by both the inspected class and its connected
-    * classes, up to the depth specified by the 'depth' parameter.
+    * @return Whether {@code getAssociatedClasses(depth)} would include it
     */
-   public Class[] getAssociatedClasses(int depth) {
-      // Cache result if we've already done the recursive scan at this depth.
-      if(this.associatedClasses == null || this.lastDepth != depth) {
-      // Start the recursive search with an empty set and a current depth of 0.
-         this.associatedClasses =
-            this.getAssociatedClasses(new HashSet<Class>(),0,depth);
-         this.lastDepth = depth;
+   public boolean isAssociatedWith(Class cls, int depth) {
+      if(depth == -1) {
+         Boolean found = inspectedClasses.reaches(inspectedClass,cls);
+         if(found != null) return found;
       }
-      return this.associatedClasses;
+      return this.getClosure(depth).getClasses(depth).contains(cls);
+   }
+   
+   /**
+    * Search the class graph breadth-first from the inspected class, keeping
+    * the depth each class is found at. The result can answer
+    * {@link #getAssociatedClasses(int)} for any depth up to the one searched
+    * (and any depth at all if the search is infinite), so it's cached and
+    * re-used for later calls.
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search
+    * @return Every class found along with its depth
+    */
+   public ClassClosure<Class> getClosure(int depth) {
+      if(this.closure == null || !this.closure.covers(depth)) {
+         Stats.Span span =
+                  Stats.begin(Stats.Timer.SEARCH,inspectedClass.getName());
+         if(pool != null) {
+            this.closure =
+                     new ParallelClassSearch(pool).search(inspectedClass,depth);
+         } else {
+            this.closure = search(this.inspectedClass,depth);
+         }
+         span.end();
+      }
+      return this.closure;
    }
    
    /*
-    * checked: the set of already-inspected classes
-    * depth: current depth
-    * max: depth at which to stop
+    * A class is expanded (has its references looked at) once, at the
+    * shallowest depth it can be reached at. The work-list means the search
+    * never recurses, however deep the graph is.
     */
-   private final Class[] getAssociatedClasses(HashSet<Class> checked,
-            int depth,int max) {
-      
-      // Stop the recursion if the current depth is greater than the maximum
-      if(depth > max && max != -1) return new Class[0];
-      
-      HashSet<Class> relatedClasses = new HashSet<Class>();
-      
-      /*
-       * Add all the directly-connected (those which are used in the inspected
-       * class itself) to a set
-       */
-      Class[] associatedClasses = this.getReferredClasses();
-      relatedClasses.addAll(Arrays.asList(associatedClasses));
-      
-      /*
-       * Then iterate through that list of classes and recursively inspect each
-       * one.
-       */
-      for(Class c : associatedClasses) {
-         
-         /*
-          * Only check a class if it hasn't been looked at before however.
-          */
-         if(!checked.contains(c)) {
-            checked.add(c);
-            Class[] tmp = ClassInspector.getAssociatedClasses(c,checked,
-                     depth+1,max);
-            relatedClasses.addAll(Arrays.asList(tmp));
-            checked.addAll(Arrays.asList(tmp));
+   private static ClassClosure<Class> search(Class source, int max) {
+      ClassClosure<Class> closure = new ClassClosure<Class>(source,max);
+      ArrayDeque<Class> queue = new ArrayDeque<Class>();
+      queue.add(source);
+      while(!queue.isEmpty()) {
+         Class cls = queue.poll();
+         int depth = closure.getDepth(cls)+1;
+         for(Class c : getReferredClasses(cls)) {
+            if(closure.add(c,depth) && closure.expand(depth)) queue.add(c);
          }
       }
-      
-      /*
-       * Add all the classes we've just picked up to a global, static set
-       * of classes - this can be used at the end of inspecting
-       * all the classes we want, to generate nodes/edges for a network
-       * graph which will show the association/connectivity between classes
-       * in the system as a whole.
-       */
-      ClassInspector.inspectedClasses.addAll(
-               relatedClasses,this.inspectedClass
-      );
-      return relatedClasses.toArray(new Class[0]);
+      return closure;
+   }
+   
+   /**
+    * Make {@link #getAssociatedClasses(int)} search the class graph using
+    * several threads (see {@link ParallelClassSearch}). It finds exactly the
+    * same classes, at the same depths, as the serial search.
+    * @param threads Number of threads to use: 1 (or less) to go back to
+    * the serial search.
+    */
+   public static synchronized void setParallelism(int threads) {
+      if(pool != null) pool.shutdown();
+      pool = threads > 1 ? new ForkJoinPool(threads) : null;
+   }
+   
+   /**
+    * @return Number of threads used by {@link #getAssociatedClasses(int)}:
+    * 1 if the search is serial.
+    */
+   public static int getParallelism() {
+      ForkJoinPool p = pool;
+      return p == null ? 1 : p.getParallelism();
    }
    
    /**
@@ -395,14 +487,7 @@ public class ClassInspector {
     * @return Number of classes which have these modifiers.
     */
    public int getReferredClassesWithModifiers(int modifiers) {
-      Class[] classes = this.getReferredClasses();
-      int count = 0;
-      for(Class c : classes) {
-         if((c.getModifiers() & modifiers) == modifiers) {
-            count++;
-         }
-      }
-      return count;
+      return this.getMetrics().getReferredClassesWithModifiers(modifiers);
    }
 
    /**
@@ -415,7 +500,10 @@ public class ClassInspector {
     * @return Number of classes which have these modifiers.
     */
    public int getAssociatedClassesWithModifiers(int modifiers, int depth) {
-      Class[] classes = this.getAssociatedClasses(depth);
+      Collection<Class> classes = null;
+      if(depth == -1) classes = inspectedClasses.getReachable(inspectedClass);
+      if(classes == null) classes = this.getClosure(depth).getClasses(depth);
+      associate(classes);
       int count = 0;
       for(Class c : classes) {
          if((c.getModifiers() & modifiers) == modifiers) {
@@ -434,15 +522,7 @@ public class ClassInspector {
     * modifiers.
     */
    public int getFieldsWithModifiers(int modifiers) {
-      int count = 0;
-      Field[] fields = inspectedClass.getDeclaredFields();
-      for(Field f : fields) {
-         f.setAccessible(true);
-         if((f.getModifiers() & modifiers) == modifiers) {
-            count++;
-         }
-      }
-      return count;
+      return this.getMetrics().getFieldsWithModifiers(modifiers);
    }
    
    /**
@@ -454,15 +534,7 @@ public class ClassInspector {
     * modifiers.
     */
    public int getMethodsWithModifiers(int modifiers) {
-      int count = 0;
-      Method[] methods = inspectedClass.getDeclaredMethods();
-      for(Method m : methods) {
-         m.setAccessible(true);
-         if((m.getModifiers() & modifiers) == modifiers) {
-            count++;
-         }
-      }
-      return count;
+      return this.getMetrics().getMethodsWithModifiers(modifiers);
    }
 
    /**
@@ -470,10 +542,7 @@ public class ClassInspector {
     * inspected class.
     */
    public int getClassSize() {
-      return
-               inspectedClass.getDeclaredMethods().length +
-               inspectedClass.getDeclaredFields().length +
-               inspectedClass.getInterfaces().length;
+      return this.getMetrics().getClassSize();
    }
 
    /**
@@ -485,6 +554,14 @@ public class ClassInspector {
       return new ClassInspector(cls).getClassSize();
    }
    
+   /**
+    * @return Counts of the inspected class' methods, fields etc. by
+    * modifier. Worked out once per class, and cached.
+    */
+   public ClassMetrics getMetrics() {
+      return cache.get(inspectedClass).getMetrics();
+   }
+   
    /**
     * @return A Hashtable of all the classes EVER inspected by ALL
     * ClassInspector instances in the current runtime. Can be used to get
@@ -493,4 +570,12 @@ public class ClassInspector {
    public static ClassMap getAllInspectedClasses() {
       return ClassInspector.inspectedClasses;
    }
+   
+   /**
+    * @return The cache of reflection results shared by ALL ClassInspector
+    * instances, e.g. to check its hit/miss counts.
+    */
+   public static ReferenceCache getReferenceCache() {
+      return ClassInspector.cache;
+   }
 }
@@ -3,53 +3,50 @@
  */
 package uk.ac.aber.dcs.odj.reflection;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Hashtable;
-
 /**
- * <p>ClassMap extends {@link Hashtable}, making it simpler to use from other
- * code. A ClassMap is a hash-table with {@link Class} objects as keys and
- * {@link HashSet}s of Classes as values.</p>
+ * <p>A ClassMap is a map with {@link Class} objects as keys and sets of
+ * Classes as values, stored in a {@link ClassGraph} (see {@link GraphMap}).
+ * </p>
  * 
  * <p>This is used to keep track of the relationships between classes - the
- * HashSet for a given key will be the list of classes that refer to the Class
+ * set for a given key will be the list of classes that refer to the Class
  * which is the key.</p>
  * 
  * @author Owain Jones [odj@aber.ac.uk]
  */
-public class ClassMap extends Hashtable<Class, HashSet<Class>> {
-   private static final long serialVersionUID = 6019232687340137611L;
+public class ClassMap extends GraphMap<Class> {
 
-   /**
-    * @param cls Class to use as the key
-    * @param parent Class which has references to the key-class
-    */
-   public void add(Class cls, Class parent) {
-      if(this.containsKey(cls)) {
-         this.get(cls).add(parent);
-      } else {
-         HashSet<Class> list = new HashSet<Class>();
-         list.add(parent);
-         this.put(cls, list);
-      }
+   public ClassMap() {
+      this(new ClassGraph());
    }
-   
+
    /**
-    * Get the number of connections for a class
-    * @param c The Class to look for in the Hashtable's keys.
-    * @return Size of the HashSet for the given key (Class).
+    * @param graph The graph to store the classes in
     */
-   public int getValue(Class c) {
-      return this.get(c).size();
+   public ClassMap(ClassGraph graph) {
+      super(graph);
    }
-   
+
    public Class[] getClasses(Class connectedTo) {
       return this.get(connectedTo).toArray(new Class[0]);
    }
-   
-   public void addAll(Collection<Class> classes, Class parent) {
-      Class[] coll = classes.toArray(new Class[0]);
-      for(Class c : coll) this.add(c,parent);
+
+   @Override
+   protected int intern(Class key) {
+      return graph.intern(key);
+   }
+
+   @Override
+   protected int getId(Object key) {
+      if(!(key instanceof Class)) return -1;
+      return graph.getId(((Class) key).getName());
+   }
+
+   /*
+    * Everything added through this map has a Class object.
+    */
+   @Override
+   protected Class getKey(int id) {
+      return graph.getType(id);
    }
 }
@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * <p>The numbers that {@link Main} prints about a class (how many methods,
+ * how many of them are public, static etc.), worked out in one go.</p>
+ *
+ * <p>The modifiers of every method, field and referred-to class are gathered
+ * in a single pass and turned into a histogram: the distinct combinations of
+ * modifiers, and how many members have each one. Any "how many members have
+ * these modifiers" question is then answered from the histogram, without
+ * going back to reflection.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class ClassMetrics {
+   private final String name;
+   private final String simpleName;
+   private final int constructors;
+   private final int interfaces;
+   private final int methods;
+   private final int fields;
+   private final int referred;
+   // Histograms: pairs of (modifiers, number of members with them)
+   private final int[] methodModifiers;
+   private final int[] fieldModifiers;
+   private final int[] referredModifiers;
+
+   private ClassMetrics(String name, String simpleName, int constructors,
+            int interfaces, int[] methodMods, int[] fieldMods, int referred,
+            int[] referredMods) {
+      this.name = name;
+      this.simpleName = simpleName;
+      this.constructors = constructors;
+      this.interfaces = interfaces;
+      this.methods = methodMods.length;
+      this.fields = fieldMods.length;
+      this.referred = referred;
+      this.methodModifiers = histogram(methodMods);
+      this.fieldModifiers = histogram(fieldMods);
+      this.referredModifiers = histogram(referredMods);
+   }
+
+   private ClassMetrics(String name, String simpleName, int constructors,
+            int interfaces, int methods, int fields, int referred,
+            int[] methodModifiers, int[] fieldModifiers,
+            int[] referredModifiers) {
+      this.name = name;
+      this.simpleName = simpleName;
+      this.constructors = constructors;
+      this.interfaces = interfaces;
+      this.methods = methods;
+      this.fields = fields;
+      this.referred = referred;
+      this.methodModifiers = methodModifiers;
+      this.fieldModifiers = fieldModifiers;
+      this.referredModifiers = referredModifiers;
+   }
+
+   /**
+    * Work out the metrics of a loaded class.
+    * @param cls The class
+    * @param methods The class' declared methods
+    * @param fields The class' declared fields
+    * @param referred The classes it refers to (see
+    * {@link ClassInspector#getReferredClasses()})
+    * @return The class' metrics
+    */
+   public static ClassMetrics forClass(Class cls, Method[] methods,
+            Field[] fields, Class[] referred) {
+      int[] methodMods = new int[methods.length];
+      for(int i=0; i<methods.length; i++) {
+         methodMods[i] = methods[i].getModifiers();
+      }
+      int[] fieldMods = new int[fields.length];
+      for(int i=0; i<fields.length; i++) {
+         fieldMods[i] = fields[i].getModifiers();
+      }
+      int[] referredMods = new int[referred.length];
+      for(int i=0; i<referred.length; i++) {
+         referredMods[i] = referred[i].getModifiers();
+      }
+      Stats.count(Stats.Counter.REFLECTIVE_CALLS);
+      return new ClassMetrics(cls.getName(),cls.getSimpleName(),
+               cls.getDeclaredConstructors().length,
+               cls.getInterfaces().length,methodMods,fieldMods,
+               referred.length,referredMods);
+   }
+
+   /**
+    * Work out the metrics of a class from its class file.
+    * @param cf The parsed class file
+    * @param referredModifiers Modifiers of the classes it refers to. Classes
+    * whose modifiers aren't known (because they couldn't be found) should
+    * be left out.
+    * @return The class' metrics
+    */
+   public static ClassMetrics forClassFile(ClassFile cf,
+            int[] referredModifiers) {
+      return new ClassMetrics(cf.getName(),cf.getSimpleName(),
+               cf.getNumberOfConstructors(),cf.getInterfaces().length,
+               cf.getMethodModifiers(),cf.getFieldModifiers(),
+               cf.getReferredClasses().length,referredModifiers);
+   }
+
+   /**
+    * @param name Name of a class that couldn't be found
+    * @return Metrics with everything set to 0
+    */
+   public static ClassMetrics unknown(String name) {
+      int[] none = new int[0];
+      return new ClassMetrics(name,name.substring(name.lastIndexOf('.')+1),
+               0,0,none,none,0,none);
+   }
+
+   /*
+    * Save the metrics, for the partial files of a ShardedAnalysis.
+    */
+   void write(AnalysisCache.Writer out) throws IOException {
+      out.writeString(name);
+      out.writeString(simpleName);
+      out.writeInt(constructors);
+      out.writeInt(interfaces);
+      out.writeInt(methods);
+      out.writeInt(fields);
+      out.writeInt(referred);
+      out.writeInts(methodModifiers);
+      out.writeInts(fieldModifiers);
+      out.writeInts(referredModifiers);
+   }
+
+   /*
+    * Load metrics saved by write().
+    */
+   static ClassMetrics read(AnalysisCache.Reader in) throws IOException {
+      return new ClassMetrics(in.readString(),in.readString(),
+               in.readInt(),in.readInt(),in.readInt(),in.readInt(),
+               in.readInt(),in.readInts(),in.readInts(),in.readInts());
+   }
+
+   /*
+    * Sort the modifiers so equal ones are next to each other, then count
+    * each run.
+    */
+   private static int[] histogram(int[] modifiers) {
+      int[] sorted = modifiers.clone();
+      Arrays.sort(sorted);
+      int[] histogram = new int[sorted.length*2];
+      int n = 0;
+      for(int i=0; i<sorted.length; i++) {
+         if(i == 0 || sorted[i] != sorted[i-1]) {
+            histogram[n] = sorted[i];
+            n += 2;
+         }
+         histogram[n-1]++;
+      }
+      return Arrays.copyOf(histogram,n);
+   }
+
+   private static int count(int[] histogram, int modifiers) {
+      int count = 0;
+      for(int i=0; i<histogram.length; i+=2) {
+         if((histogram[i] & modifiers) == modifiers) count += histogram[i+1];
+      }
+      return count;
+   }
+
+   /**
+    * @return Name of the class
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @return Name of the class without its package
+    */
+   public String getSimpleName() {
+      return simpleName;
+   }
+
+   /**
+    * @return Number of methods declared in the class
+    */
+   public int getNumberOfMethods() {
+      return methods;
+   }
+
+   /**
+    * @return Number of constructors declared in the class
+    */
+   public int getNumberOfConstructors() {
+      return constructors;
+   }
+
+   /**
+    * @return Number of fields declared in the class
+    */
+   public int getNumberOfFields() {
+      return fields;
+   }
+
+   /**
+    * @return Number of classes the class refers to directly
+    */
+   public int getNumberOfReferredClasses() {
+      return referred;
+   }
+
+   /**
+    * @return Number of methods, fields & interfaces of the class
+    */
+   public int getClassSize() {
+      return methods + fields + interfaces;
+   }
+
+   /**
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of methods which have all of these modifiers
+    */
+   public int getMethodsWithModifiers(int modifiers) {
+      return count(methodModifiers,modifiers);
+   }
+
+   /**
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of fields which have all of these modifiers
+    */
+   public int getFieldsWithModifiers(int modifiers) {
+      return count(fieldModifiers,modifiers);
+   }
+
+   /**
+    * @param modifiers Bitfield of the constants in {@link Modifier}
+    * @return Number of directly referred-to classes which have all of these
+    * modifiers
+    */
+   public int getReferredClassesWithModifiers(int modifiers) {
+      return count(referredModifiers,modifiers);
+   }
+}
@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+/**
+ * <p>The same as {@link ClassMap}, but using class names instead of
+ * {@link Class} objects. Used by {@link BytecodeInspector}, which never loads
+ * the classes it looks at.</p>
+ * 
+ * <p>The set for a given key is the set of names of classes that refer to
+ * the class named by the key.</p>
+ * 
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassNameMap extends GraphMap<String> {
+
+   public ClassNameMap() {
+      this(new ClassGraph());
+   }
+
+   /**
+    * @param graph The graph to store the classes in
+    */
+   public ClassNameMap(ClassGraph graph) {
+      super(graph);
+   }
+
+   public String[] getClasses(String connectedTo) {
+      return this.get(connectedTo).toArray(new String[0]);
+   }
+
+   @Override
+   protected int intern(String key) {
+      return graph.intern(key);
+   }
+
+   @Override
+   protected int getId(Object key) {
+      if(!(key instanceof String)) return -1;
+      return graph.getId((String) key);
+   }
+
+   @Override
+   protected String getKey(int id) {
+      return graph.getName(id);
+   }
+}
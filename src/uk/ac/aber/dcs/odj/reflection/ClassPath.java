@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A list of jars and directories to read {@code .class} files from,
+ * in the same form as the JVM's -classpath option. Used by
+ * {@link BytecodeInspector} to find classes without loading them.</p>
+ *
+ * <p>Jars are mapped into memory (see {@link MappedJar}) the first time a
+ * class is looked up, and stay mapped until {@link #close()} is called.
+ * Classes are read into buffers from a {@link BufferPool}, or straight out
+ * of the mapped jar if they weren't compressed, so reading classes doesn't
+ * allocate any arrays.</p>
+ *
+ * <p>A class path can also fall back on the JDK's own classes, for classes
+ * which aren't in any of its jars or directories. Since Java 9 there's no
+ * rt.jar to put on the class path, so they're read from the JDK's jrt:/
+ * file system (or rt.jar, before Java 9) through the class loader which
+ * only sees the JDK. Nothing else the JVM running this can load is
+ * found.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassPath implements Closeable {
+   // The platform class loader on Java 9 and later, the extension class
+   // loader before that: either way, it asks the bootstrap loader first
+   private static final ClassLoader JDK =
+            ClassLoader.getSystemClassLoader().getParent();
+   private final File[] entries;
+   private final MappedJar[] jars;
+   private final boolean jdk;
+   private final BufferPool pool = new BufferPool();
+
+   /**
+    * @param path Jars and directories, separated by {@link File#pathSeparator}
+    * (':' on Unix, ';' on Windows).
+    */
+   public ClassPath(String path) {
+      this(path,false);
+   }
+
+   /**
+    * @param path Jars and directories, separated by {@link File#pathSeparator}
+    * (':' on Unix, ';' on Windows).
+    * @param jdk Whether to read the JDK's own classes if they aren't in any
+    * of the jars or directories. This isn't for loading classes: the JDK's
+    * classes can't be defined by another class loader.
+    */
+   public ClassPath(String path, boolean jdk) {
+      this(jdk,split(path));
+   }
+
+   /**
+    * @param entries Jar files and/or directories to search, in order
+    */
+   public ClassPath(File ... entries) {
+      this(false,entries);
+   }
+
+   private ClassPath(boolean jdk, File[] entries) {
+      this.entries = entries.clone();
+      this.jars = new MappedJar[entries.length];
+      this.jdk = jdk;
+   }
+
+   private static File[] split(String path) {
+      ArrayList<File> files = new ArrayList<File>();
+      for(String s : path.split(File.pathSeparator)) {
+         if(!s.isEmpty()) files.add(new File(s));
+      }
+      return files.toArray(new File[0]);
+   }
+
+   /**
+    * @return The jars and directories on this class path
+    */
+   public File[] getEntries() {
+      return entries.clone();
+   }
+
+   /**
+    * Find a class on the class path and read the contents of its class file.
+    * @param className Binary name of the class (e.g. java.util.Map$Entry)
+    * @return The bytes of the class file, or null if the class couldn't be
+    * found. If the class was stored in a jar without being compressed, this
+    * is a read-only view of the mapped jar.
+    * @throws IOException If a jar or class file couldn't be read
+    */
+   public ByteBuffer getClassBytes(String className) throws IOException {
+      return read(className,null);
+   }
+
+   /**
+    * Same as {@link #getClassBytes(String)}, but the class file is read into
+    * a pooled buffer where possible. The buffer should be given back with
+    * {@link #release(ByteBuffer)} as soon as it's been used.
+    * @param className Binary name of the class (e.g. java.util.Map$Entry)
+    * @return The bytes of the class file, or null if the class couldn't be
+    * found.
+    * @throws IOException If a jar or class file couldn't be read
+    */
+   public ByteBuffer borrowClassBytes(String className) throws IOException {
+      return read(className,pool);
+   }
+
+   /**
+    * Hand back a buffer from {@link #borrowClassBytes(String)}.
+    * @param bytes The buffer, or null
+    */
+   public void release(ByteBuffer bytes) {
+      pool.release(bytes);
+   }
+
+   private ByteBuffer read(String className, BufferPool pool)
+            throws IOException {
+      String path = className.replace('.','/')+".class";
+      for(int i=0; i<entries.length; i++) {
+         if(entries[i].isDirectory()) {
+            File f = new File(entries[i],path);
+            if(f.isFile()) return read(f,pool);
+         } else if(entries[i].isFile()) {
+            ByteBuffer bytes = jar(i).get(path,pool);
+            if(bytes != null) return bytes;
+         }
+      }
+      return jdk ? readJdk(path,pool) : null;
+   }
+
+   /**
+    * <p>Get a checksum of a class file's contents: its CRC-32 in the low 32
+    * bits and its length in the high 32 bits. If the class file's contents
+    * change, its checksum (almost certainly) will too.</p>
+    *
+    * <p>For classes in jars this is cheap, as the jar's directory already has
+    * the CRC & length of every entry, so nothing needs to be decompressed.
+    * Class files in directories have to be read to work it out.</p>
+    * @param className Binary name of the class (e.g. java.util.Map$Entry)
+    * @return The checksum, or -1 if the class couldn't be found.
+    * @throws IOException If a jar or class file couldn't be read
+    */
+   public long getChecksum(String className) throws IOException {
+      String path = className.replace('.','/')+".class";
+      for(int i=0; i<entries.length; i++) {
+         if(entries[i].isDirectory()) {
+            File f = new File(entries[i],path);
+            if(f.isFile()) {
+               ByteBuffer bytes = read(f,pool);
+               try {
+                  return checksum(bytes);
+               } finally {
+                  pool.release(bytes);
+               }
+            }
+         } else if(entries[i].isFile()) {
+            long checksum = jar(i).getChecksum(path);
+            if(checksum != -1) return checksum;
+         }
+      }
+      ByteBuffer bytes = jdk ? readJdk(path,pool) : null;
+      if(bytes == null) return -1;
+      try {
+         return checksum(bytes);
+      } finally {
+         pool.release(bytes);
+      }
+   }
+
+   /**
+    * @param className Binary name of the class (e.g. java.util.Map$Entry)
+    * @return The jar or directory the class would be read from, or null if
+    * the class couldn't be found (or is one of the JDK's own classes).
+    * @throws IOException If a jar couldn't be read
+    */
+   public File getEntry(String className) throws IOException {
+      String path = className.replace('.','/')+".class";
+      for(int i=0; i<entries.length; i++) {
+         if(entries[i].isDirectory()) {
+            if(new File(entries[i],path).isFile()) return entries[i];
+         } else if(entries[i].isFile()) {
+            if(jar(i).contains(path)) return entries[i];
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @param bytes Contents of a class file
+    * @return The same checksum {@link #getChecksum(String)} gives for a class
+    * file with these contents
+    */
+   public static long checksum(ByteBuffer bytes) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes.duplicate());
+      return (long) bytes.remaining() << 32 | crc.getValue();
+   }
+
+   /**
+    * Find a class on the class path and parse its class file.
+    * @param className Binary name of the class (e.g. java.util.Map$Entry)
+    * @return The parsed class, or null if the class couldn't be found.
+    * @throws IOException If the class file couldn't be read or parsed
+    */
+   public ClassFile getClassFile(String className) throws IOException {
+      ByteBuffer bytes = this.borrowClassBytes(className);
+      if(bytes == null) return null;
+      try {
+         Stats.count(Stats.Counter.CLASS_FILES_PARSED);
+         return ClassFile.parse(bytes);
+      } finally {
+         pool.release(bytes);
+      }
+   }
+
+   /**
+    * @param i Index of a jar in {@link #getEntries()}
+    * @return The jar, mapped into memory
+    * @throws IOException If the jar couldn't be opened
+    */
+   synchronized MappedJar jar(int i) throws IOException {
+      if(jars[i] == null) jars[i] = new MappedJar(entries[i]);
+      return jars[i];
+   }
+
+   /*
+    * Class files in directories are small enough that reading them into a
+    * (pooled) buffer is cheaper than mapping each one.
+    */
+   private static ByteBuffer read(File f, BufferPool pool) throws IOException {
+      FileChannel channel = new FileInputStream(f).getChannel();
+      try {
+         return read(channel,(int) channel.size(),pool,f);
+      } finally {
+         channel.close();
+      }
+   }
+
+   /*
+    * One of the JDK's own classes, from wherever the JDK keeps it: the
+    * modules image (jrt:/) or rt.jar. Returns null if it isn't one.
+    */
+   private static ByteBuffer readJdk(String path, BufferPool pool)
+            throws IOException {
+      URL url = JDK == null ? null : JDK.getResource(path);
+      if(url == null) return null;
+      URLConnection connection = url.openConnection();
+      int size = connection.getContentLength();
+      ReadableByteChannel channel =
+               Channels.newChannel(connection.getInputStream());
+      try {
+         if(size < 0) throw new IOException("Unknown size of "+url);
+         return read(channel,size,pool,url);
+      } finally {
+         channel.close();
+      }
+   }
+
+   private static ByteBuffer read(ReadableByteChannel channel, int size,
+            BufferPool pool, Object from) throws IOException {
+      ByteBuffer bytes = pool == null ? ByteBuffer.allocate(size) :
+               pool.acquire(size);
+      while(bytes.hasRemaining()) {
+         if(channel.read(bytes) == -1) {
+            if(pool != null) pool.release(bytes);
+            throw new EOFException("Class file truncated: "+from);
+         }
+      }
+      bytes.flip();
+      return bytes;
+   }
+
+   /**
+    * Unmap any jar files that have been mapped.
+    */
+   @Override
+   public synchronized void close() throws IOException {
+      for(int i=0; i<jars.length; i++) {
+         if(jars[i] != null) jars[i].close();
+         jars[i] = null;
+      }
+   }
+}
@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Class loader which loads classes from a {@link ClassPath}, so that
+ * {@link ClassInspector} can reflect on classes in jars that aren't on the
+ * JVM's own class path.</p>
+ *
+ * <p>Class files are passed to {@link #defineClass(String, ByteBuffer,
+ * java.security.ProtectionDomain)} straight from the mapped jar (or a pooled
+ * buffer), so no byte arrays are allocated to load them.</p>
+ *
+ * <p>Anything that isn't on the class path is looked for by the parent
+ * loader. By default that's the bootstrap loader, so only the JDK's classes
+ * and the ones on the given class path can be seen: the classes of this
+ * program can't get mixed up with the ones being inspected.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassPathLoader extends ClassLoader {
+   private final ClassPath classPath;
+
+   /**
+    * @param classPath Where to load classes from
+    */
+   public ClassPathLoader(ClassPath classPath) {
+      this(classPath,null);
+   }
+
+   /**
+    * @param classPath Where to load classes from
+    * @param parent Loader to ask first, or null for the bootstrap loader
+    */
+   public ClassPathLoader(ClassPath classPath, ClassLoader parent) {
+      super(parent);
+      this.classPath = classPath;
+   }
+
+   /**
+    * @return Where classes are loaded from
+    */
+   public ClassPath getClassPath() {
+      return classPath;
+   }
+
+   @Override
+   protected Class<?> findClass(String name) throws ClassNotFoundException {
+      ByteBuffer bytes;
+      try {
+         bytes = classPath.borrowClassBytes(name);
+      } catch(IOException e) {
+         throw new ClassNotFoundException(name,e);
+      }
+      if(bytes == null) throw new ClassNotFoundException(name);
+      try {
+         Class<?> cls = defineClass(name,bytes,null);
+         Stats.count(Stats.Counter.CLASSES_LOADED);
+         return cls;
+      } finally {
+         classPath.release(bytes);
+      }
+   }
+}
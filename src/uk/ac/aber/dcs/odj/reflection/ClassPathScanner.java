@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Finds every class on a {@link ClassPath}, and runs some analysis on
+ * each of them, so whole jars can be looked at without listing their classes
+ * by hand. Both jobs are split up between the threads of a
+ * {@link ForkJoinPool}: each jar & directory is listed on its own thread
+ * (directories one subdirectory per task), and the classes are analysed a
+ * few at a time on whichever thread is free.</p>
+ *
+ * <p>Classes under META-INF, and module-info & package-info, aren't real
+ * classes and are left out. If the same class is in more than one jar or
+ * directory, only the first one is counted, just as only the first would be
+ * loaded.</p>
+ *
+ * <p>While the classes are being analysed, the number done so far and how
+ * fast they're going is printed every so often.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ClassPathScanner {
+   /*
+    * Number of classes each task analyses itself, rather than splitting the
+    * work any further.
+    */
+   private static final int THRESHOLD = 16;
+   private static final long REPORT_INTERVAL = 1000000000L; // 1 second
+
+   private final ClassPath classPath;
+   private final ForkJoinPool pool;
+   private PrintStream out = System.out;
+
+   /**
+    * Something to do to each class found.
+    */
+   public interface Analysis {
+      /**
+       * @param cls Name of the class
+       * @throws Exception If the class couldn't be analysed. The class is
+       * counted as failed, and the scan goes on.
+       */
+      void analyse(String cls) throws Exception;
+   }
+
+   /**
+    * @param classPath The jars & directories to scan
+    * @param threads Number of threads to use
+    */
+   public ClassPathScanner(ClassPath classPath, int threads) {
+      this.classPath = classPath;
+      this.pool = new ForkJoinPool(Math.max(1,threads));
+   }
+
+   /**
+    * @param out Where to print progress reports to, or null for none
+    */
+   public void setProgress(PrintStream out) {
+      this.out = out;
+   }
+
+   /**
+    * List every class on the class path. Each jar or directory's classes
+    * are sorted by name, and they're in class path order, so the same class
+    * path always gives the same list.
+    * @return Binary names of the classes (e.g. java.util.Map$Entry)
+    * @throws IOException If a jar couldn't be read
+    */
+   public String[] listClasses() throws IOException {
+      long start = System.nanoTime();
+      File[] entries = classPath.getEntries();
+      List<ListTask> tasks = new ArrayList<ListTask>();
+      for(int i=0; i<entries.length; i++) {
+         tasks.add(new ListTask(i,entries[i],entries[i]));
+      }
+      LinkedHashSet<String> classes = new LinkedHashSet<String>();
+      try {
+         for(ListTask t : tasks) pool.execute(t);
+         for(ListTask t : tasks) {
+            List<String> names = t.join();
+            Collections.sort(names);
+            classes.addAll(names);
+         }
+      } catch(ScanException e) {
+         throw e.getCause();
+      }
+      report("Listed "+classes.size()+" classes in "+entries.length+
+               " jars/directories",classes.size(),System.nanoTime()-start);
+      return classes.toArray(new String[0]);
+   }
+
+   /**
+    * Run an analysis on each of a list of classes, in parallel.
+    * @param classes Names of the classes
+    * @param analysis What to do to each one
+    * @return Number of classes which couldn't be analysed
+    */
+   public int analyse(String[] classes, Analysis analysis) {
+      Progress p = new Progress(classes.length);
+      pool.invoke(new AnalyseTask(classes,0,classes.length,analysis,p));
+      report("Analysed "+classes.length+" classes ("+p.failed.get()+
+               " failed)",classes.length,System.nanoTime()-p.start);
+      return p.failed.get();
+   }
+
+   /**
+    * Stop the scanner's threads.
+    */
+   public void shutdown() {
+      pool.shutdown();
+   }
+
+   private void report(String what, int classes, long nanos) {
+      if(out == null) return;
+      long ms = nanos/1000000;
+      out.println(what+" in "+ms+"ms ("+rate(classes,nanos)+
+               " classes/sec)");
+   }
+
+   private static long rate(int classes, long nanos) {
+      return nanos == 0 ? 0 : classes*1000000000L/nanos;
+   }
+
+   /*
+    * Binary name of a class file, or null if it isn't one.
+    */
+   private static String className(String path) {
+      if(!path.endsWith(".class") || path.startsWith("META-INF/")) {
+         return null;
+      }
+      String name = path.substring(0,path.length()-6);
+      if(name.endsWith("module-info") || name.endsWith("package-info")) {
+         return null;
+      }
+      return name.replace('/','.');
+   }
+
+   /*
+    * Lets IOExceptions out of RecursiveTask.compute().
+    */
+   private static final class ScanException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      ScanException(IOException cause) {
+         super(cause);
+      }
+
+      @Override
+      public IOException getCause() {
+         return (IOException) super.getCause();
+      }
+   }
+
+   /*
+    * Lists the classes in a jar, or in one directory (and its
+    * subdirectories, each in a task of its own).
+    */
+   private final class ListTask extends RecursiveTask<List<String>> {
+      private static final long serialVersionUID = 1L;
+      private final int entry;
+      private final File root;
+      private final File dir;
+
+      ListTask(int entry, File root, File dir) {
+         this.entry = entry;
+         this.root = root;
+         this.dir = dir;
+      }
+
+      @Override
+      protected List<String> compute() {
+         List<String> names = new ArrayList<String>();
+         if(dir.isDirectory()) {
+            String[] files = dir.list();
+            if(files == null) return names;
+            Arrays.sort(files);
+            List<ListTask> subdirs = new ArrayList<ListTask>();
+            String prefix = root.toURI().relativize(dir.toURI()).getPath();
+            for(String f : files) {
+               File file = new File(dir,f);
+               if(file.isDirectory()) {
+                  ListTask t = new ListTask(entry,root,file);
+                  t.fork();
+                  subdirs.add(t);
+               } else {
+                  String name = className(prefix+f);
+                  if(name != null) names.add(name);
+               }
+            }
+            for(ListTask t : subdirs) names.addAll(t.join());
+         } else if(dir.isFile()) {
+            try {
+               for(String path : classPath.jar(entry).getNames()) {
+                  String name = className(path);
+                  if(name != null) names.add(name);
+               }
+            } catch(IOException e) {
+               throw new ScanException(e);
+            }
+         }
+         return names;
+      }
+   }
+
+   /*
+    * How far through the analysis we are, shared by all the tasks.
+    */
+   private final class Progress {
+      final int total;
+      final long start = System.nanoTime();
+      final AtomicInteger done = new AtomicInteger();
+      final AtomicInteger failed = new AtomicInteger();
+      final AtomicLong nextReport = new AtomicLong(start+REPORT_INTERVAL);
+
+      Progress(int total) {
+         this.total = total;
+      }
+
+      /*
+       * Only the thread that gets past the reporting time first prints
+       * anything.
+       */
+      void finished(int classes) {
+         int d = done.addAndGet(classes);
+         long now = System.nanoTime();
+         long next = nextReport.get();
+         if(now >= next && out != null &&
+                  nextReport.compareAndSet(next,now+REPORT_INTERVAL)) {
+            out.println("Analysed "+d+"/"+total+" classes ("+
+                     rate(d,now-start)+" classes/sec)");
+         }
+      }
+   }
+
+   /*
+    * Analyses classes [start,end) of the list.
+    */
+   private final class AnalyseTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final String[] classes;
+      private final int start;
+      private final int end;
+      private final Analysis analysis;
+      private final Progress progress;
+
+      AnalyseTask(String[] classes, int start, int end, Analysis analysis,
+               Progress progress) {
+         this.classes = classes;
+         this.start = start;
+         this.end = end;
+         this.analysis = analysis;
+         this.progress = progress;
+      }
+
+      @Override
+      protected void compute() {
+         if(end-start > THRESHOLD) {
+            int mid = (start+end) >>> 1;
+            invokeAll(new AnalyseTask(classes,start,mid,analysis,progress),
+                     new AnalyseTask(classes,mid,end,analysis,progress));
+            return;
+         }
+         for(int i=start; i<end; i++) {
+            try {
+               analysis.analyse(classes[i]);
+            } catch(Throwable e) {
+               // Same as Main: classes which can't be inspected are skipped
+               progress.failed.incrementAndGet();
+            }
+         }
+         progress.finished(end-start);
+      }
+   }
+}
@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import uk.co.slashingedge.utils.CsvWriter;
+
+/**
+ * <p>Compares two versions of some jars (or directories): which classes
+ * were added or removed, which references between classes were added or
+ * removed, and how the numbers in nodes.txt changed for the classes in
+ * both.</p>
+ *
+ * <p>Each version is scanned in turn with a {@link BytecodeInspector},
+ * using the same {@link AnalysisCache}, so class files which are the same
+ * in both versions (and the libraries they both use) are only parsed once:
+ * the second version only costs as much as what changed in it. The graph
+ * searches are still done over the whole of each version, as a change to
+ * one class can change the numbers of every class which reaches it.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class GraphDiff {
+   private final String libraries;
+   private int addedClasses = 0;
+   private int removedClasses = 0;
+   private int changedClasses = 0;
+   private int addedEdges = 0;
+   private int removedEdges = 0;
+   private long parsed = 0;
+
+   /**
+    * @param libraries Class path of anything else the jars use, which is
+    * the same for both versions (separated by {@link File#pathSeparator}),
+    * or null for nothing
+    */
+   public GraphDiff(String libraries) {
+      this.libraries = libraries;
+   }
+
+   /**
+    * Scan both versions, and write out the differences between them, with
+    * the header "change,class,detail,before,after". Each row is one of:
+    * <ul>
+    * <li>added class,&lt;class&gt; / removed class,&lt;class&gt;</li>
+    * <li>added edge,&lt;class&gt;,&lt;class it refers to&gt; /
+    * removed edge,...</li>
+    * <li>changed,&lt;class&gt;,&lt;column of nodes.txt&gt;,&lt;value
+    * before&gt;,&lt;value after&gt;</li>
+    * </ul>
+    * Classes are in alphabetical order within each kind of change.
+    * Anything already read by the BytecodeInspector is thrown away.
+    * @param before Jars/directories of the old version
+    * @param after Jars/directories of the new version
+    * @param out Where to write the differences
+    * @throws IOException If a version couldn't be read, or the differences
+    * couldn't be written
+    */
+   public void compare(String before, String after, CsvWriter out)
+            throws IOException {
+      long start = Stats.get(Stats.Counter.CLASS_FILES_PARSED);
+      Version a = new Version(before);
+      Version b = new Version(after);
+      parsed = Stats.get(Stats.Counter.CLASS_FILES_PARSED)-start;
+
+      out.row("change","class","detail","before","after");
+      for(String c : a.metrics.keySet()) {
+         if(!b.metrics.containsKey(c)) {
+            out.field("removed class").name(c).endRow();
+            removedClasses++;
+         }
+      }
+      for(String c : b.metrics.keySet()) {
+         if(!a.metrics.containsKey(c)) {
+            out.field("added class").name(c).endRow();
+            addedClasses++;
+         }
+      }
+      removedEdges = edges(out,"removed edge",a,b);
+      addedEdges = edges(out,"added edge",b,a);
+      for(Entry<String, int[]> e : a.metrics.entrySet()) {
+         int[] old = e.getValue();
+         int[] now = b.metrics.get(e.getKey());
+         if(now == null) continue;
+         boolean changed = false;
+         for(int i=0; i<old.length; i++) {
+            if(old[i] == now[i]) continue;
+            out.field("changed").name(e.getKey()).field(Main.HEADER[i+3])
+                     .field(old[i]).field(now[i]).endRow();
+            changed = true;
+         }
+         if(changed) changedClasses++;
+      }
+   }
+
+   /*
+    * Write the edges which are in one version but not the other.
+    */
+   private static int edges(CsvWriter out, String change, Version in,
+            Version notIn) throws IOException {
+      int n = 0;
+      for(Entry<String, TreeSet<String>> e : in.edges.entrySet()) {
+         Set<String> other = notIn.edges.get(e.getKey());
+         for(String c : e.getValue()) {
+            if(other != null && other.contains(c)) continue;
+            out.field(change).name(e.getKey()).name(c).endRow();
+            n++;
+         }
+      }
+      return n;
+   }
+
+   @Override
+   public String toString() {
+      return addedClasses+" classes added, "+removedClasses+" removed, "+
+               changedClasses+" changed; "+addedEdges+" edges added, "+
+               removedEdges+" removed ("+parsed+" class files parsed)";
+   }
+
+   /*
+    * What's needed from one version: the numbers in nodes.txt for each of
+    * its classes, and every reference in its graph.
+    */
+   private final class Version {
+      final TreeMap<String, int[]> metrics = new TreeMap<String, int[]>();
+      final TreeMap<String, TreeSet<String>> edges =
+               new TreeMap<String, TreeSet<String>>();
+
+      Version(String path) throws IOException {
+         ClassPath old = BytecodeInspector.getClassPath();
+         BytecodeInspector.setClassPath(new ClassPath(libraries == null ?
+                  path : path+File.pathSeparator+libraries,true));
+         old.close();
+         BytecodeInspector.reset();
+
+         ClassPath scanned = new ClassPath(path);
+         ClassPathScanner scanner = new ClassPathScanner(scanned,
+                  ClassInspector.getParallelism());
+         String[] classes;
+         try {
+            classes = scanner.listClasses();
+            Main.warmUp(classes,true,scanner);
+         } finally {
+            scanner.shutdown();
+            scanned.close();
+         }
+
+         ClassNameMap map = BytecodeInspector.getAllInspectedClasses();
+         for(String c : classes) {
+            metrics.put(c,Main.columns(BytecodeInspector.getMetrics(c),
+                     Main.associated(c),Main.connections(map,c)));
+         }
+         for(Entry<String, Set<String>> e : map.entrySet()) {
+            for(String c : e.getValue()) {
+               if(e.getKey().equals(c)) continue;
+               TreeSet<String> referred = edges.get(c);
+               if(referred == null) {
+                  referred = new TreeSet<String>();
+                  edges.put(c,referred);
+               }
+               referred.add(e.getKey());
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,303 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>Map view of a {@link ClassGraph}: the keys are classes, and the set for
+ * a given key is the classes which refer to it, along with the classes
+ * whose searches found it (see {@link #associateAll(Collection, Object)}).
+ * Subclasses decide how
+ * classes are identified ({@link ClassMap} uses Class objects,
+ * {@link ClassNameMap} uses names).</p>
+ *
+ * <p>The map and its sets are read-only views of the graph: use
+ * {@link #add(Object, Object)} to add to it. Iterating over the map (or one
+ * of its sets) goes over the graph as it was when the iteration started, so
+ * it's safe to keep adding classes while iterating.</p>
+ *
+ * @param <K> How classes are identified
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public abstract class GraphMap<K> extends AbstractMap<K, Set<K>> {
+   protected final ClassGraph graph;
+
+   /**
+    * @param graph The graph the classes are stored in
+    */
+   protected GraphMap(ClassGraph graph) {
+      this.graph = graph;
+   }
+
+   /**
+    * @param key A class
+    * @return The class' id in the graph (adding it if it isn't there)
+    */
+   protected abstract int intern(K key);
+
+   /**
+    * @param key Something that might be a class
+    * @return The class' id in the graph, or -1 if it isn't there
+    */
+   protected abstract int getId(Object key);
+
+   /**
+    * @param id Id of a class in the graph
+    * @return The class
+    */
+   protected abstract K getKey(int id);
+
+   /**
+    * @return The graph the classes are stored in
+    */
+   public ClassGraph getGraph() {
+      return graph;
+   }
+
+   /**
+    * Safe to call from several threads at once (see
+    * {@link ClassInspector#setParallelism(int)}).
+    * @param cls Class to use as the key
+    * @param parent Class which has references to the key-class
+    */
+   public void add(K cls, K parent) {
+      graph.addEdge(intern(parent),intern(cls));
+   }
+
+   /**
+    * Get the number of connections for a class
+    * @param c The class to look for in the map's keys.
+    * @return Number of classes which refer to the given key, 0 if it isn't
+    * in the map.
+    */
+   public int getValue(K c) {
+      int id = find(c);
+      return id == -1 ? 0 : graph.referrers(graph.reverse(),id).length;
+   }
+
+   /**
+    * Add every class the parent refers to. This should be all of them: the
+    * parent is marked as explored, so {@link #getReachableCount(Object)}
+    * can use it.
+    * @param classes Classes to use as keys
+    * @param parent Class which has references to the key-classes
+    */
+   public void addAll(Collection<K> classes, K parent) {
+      int from = intern(parent);
+      for(K c : classes) graph.addEdge(from,intern(c));
+      graph.setExplored(from);
+   }
+
+   /**
+    * Record that a search from a class found some others. They're listed
+    * in the map along with the classes which refer to them, but they
+    * aren't references: nothing that follows references (e.g.
+    * {@link #getReachableCount(Object)}) goes through them.
+    * @param classes Classes the search found
+    * @param source Class the search started from
+    */
+   public void associateAll(Collection<K> classes, K source) {
+      int[] ids = new int[classes.size()];
+      int n = 0;
+      for(K c : classes) ids[n++] = intern(c);
+      graph.associate(intern(source),ids);
+   }
+   
+   /**
+    * Mark a class as having no references at all (e.g. because it couldn't
+    * be found). Does nothing if the class isn't in the graph yet.
+    * @param cls The class
+    */
+   public void setExplored(K cls) {
+      int id = getId(cls);
+      if(id != -1) graph.setExplored(id);
+   }
+
+   /**
+    * Get the number of classes a class refers to, directly or not, from the
+    * graph's {@link ReachabilityIndex} rather than by searching.
+    * @param cls The class
+    * @return Number of classes it reaches (including itself), or -1 if some
+    * of them haven't been explored yet.
+    */
+   public int getReachableCount(K cls) {
+      ReachabilityIndex index = graph.reachability();
+      int id = getId(cls);
+      return index.isComplete(id) ? index.count(id) : -1;
+   }
+
+   /**
+    * Same as {@link #getReachableCount(Object)}, but also records the class
+    * as associated with everything it reaches, the same as a search from it
+    * would (see {@link #associateAll(Collection, Object)}).
+    * @param cls The class
+    * @return Number of classes it reaches (including itself), or -1 if some
+    * of them haven't been explored yet (nothing's recorded).
+    */
+   public int associateReachable(K cls) {
+      ReachabilityIndex index = graph.reachability();
+      int id = getId(cls);
+      if(!index.isComplete(id)) return -1;
+      int[] reached = index.reachable(id);
+      graph.associate(id,reached);
+      return reached.length;
+   }
+   
+   /**
+    * @param cls The class
+    * @return Every class it refers to, directly or not (including itself),
+    * or null if some of them haven't been explored yet.
+    */
+   public List<K> getReachable(K cls) {
+      ReachabilityIndex index = graph.reachability();
+      int id = getId(cls);
+      if(!index.isComplete(id)) return null;
+      List<K> found = new ArrayList<K>();
+      for(int v : index.reachable(id)) found.add(getKey(v));
+      return found;
+   }
+
+   /**
+    * @param cls The class
+    * @param other Another class
+    * @return Whether cls refers to other, directly or not, or null if some
+    * of the classes cls reaches haven't been explored yet.
+    */
+   public Boolean reaches(K cls, Object other) {
+      ReachabilityIndex index = graph.reachability();
+      int id = getId(cls);
+      if(!index.isComplete(id)) return null;
+      return index.reaches(id,getId(other));
+   }
+
+   /*
+    * Classes only come into the graph through an edge, and each inspected
+    * class refers to itself, so every class in it is a key. A search only
+    * finds classes through references, so the classes associated with
+    * something are keys already.
+    */
+   private int find(Object key) {
+      int id = getId(key);
+      if(id == -1 || graph.reverse().degree(id) == 0) return -1;
+      return id;
+   }
+
+   @Override
+   public boolean containsKey(Object key) {
+      return find(key) != -1;
+   }
+
+   @Override
+   public Set<K> get(Object key) {
+      int id = find(key);
+      if(id == -1) return null;
+      return new Referrers(graph.referrers(graph.reverse(),id));
+   }
+
+   @Override
+   public int size() {
+      ClassGraph.Adjacency reverse = graph.reverse();
+      int size = 0;
+      for(int v=0; v<reverse.size(); v++) {
+         if(reverse.degree(v) > 0) size++;
+      }
+      return size;
+   }
+
+   @Override
+   public Set<Entry<K, Set<K>>> entrySet() {
+      return new AbstractSet<Entry<K, Set<K>>>() {
+         @Override
+         public Iterator<Entry<K, Set<K>>> iterator() {
+            final ClassGraph.Adjacency reverse = graph.reverse();
+            return new Iterator<Entry<K, Set<K>>>() {
+               private int next = advance(0);
+
+               private int advance(int v) {
+                  while(v < reverse.size() && reverse.degree(v) == 0) v++;
+                  return v;
+               }
+
+               @Override
+               public boolean hasNext() {
+                  return next < reverse.size();
+               }
+
+               @Override
+               public Entry<K, Set<K>> next() {
+                  if(!hasNext()) throw new NoSuchElementException();
+                  int v = next;
+                  next = advance(v+1);
+                  return new SimpleImmutableEntry<K, Set<K>>(getKey(v),
+                           new Referrers(graph.referrers(reverse,v)));
+               }
+
+               @Override
+               public void remove() {
+                  throw new UnsupportedOperationException();
+               }
+            };
+         }
+
+         @Override
+         public int size() {
+            return GraphMap.this.size();
+         }
+      };
+   }
+
+   /*
+    * The classes which refer to one class (see ClassGraph.referrers()).
+    */
+   private final class Referrers extends AbstractSet<K> {
+      private final int[] ids;
+
+      Referrers(int[] ids) {
+         this.ids = ids;
+      }
+
+      @Override
+      public int size() {
+         return ids.length;
+      }
+
+      @Override
+      public boolean contains(Object o) {
+         int other = getId(o);
+         return other != -1 && Arrays.binarySearch(ids,other) >= 0;
+      }
+
+      @Override
+      public Iterator<K> iterator() {
+         return new Iterator<K>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+               return i < ids.length;
+            }
+
+            @Override
+            public K next() {
+               if(!hasNext()) throw new NoSuchElementException();
+               return getKey(ids[i++]);
+            }
+
+            @Override
+            public void remove() {
+               throw new UnsupportedOperationException();
+            }
+         };
+      }
+   }
+}
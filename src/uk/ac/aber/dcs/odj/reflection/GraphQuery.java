@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.Arrays;
+
+/**
+ * <p>Questions about a {@link ClassGraph} that's already been built, answered
+ * straight from its adjacency lists without inspecting anything again:</p>
+ * <ul>
+ * <li>What does a class depend on? ({@link #getDependencies(String, int)})</li>
+ * <li>What depends on a class, i.e. what might break if it changes?
+ * ({@link #getDependents(String, int)})</li>
+ * <li>Why does one class depend on another? ({@link #getPath(String,
+ * String)})</li>
+ * </ul>
+ *
+ * <p>Queries are answered from the graph as it was when the GraphQuery was
+ * made: classes inspected afterwards aren't seen. The searches share some
+ * scratch space (so they don't have to allocate anything the size of the
+ * graph each time), so a GraphQuery shouldn't be used by more than one
+ * thread at once; make one per thread instead.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class GraphQuery {
+   private final ClassGraph graph;
+   private final ClassGraph.Adjacency forward;
+   private final ClassGraph.Adjacency reverse;
+   // Which search last visited each class, and how it got there
+   private final int[] seen;
+   private final int[] seenBack;
+   private final int[] parent;
+   private final int[] parentBack;
+   private int search = 0;
+   private int[] queue;
+   private int[] queueBack;
+
+   /**
+    * @param graph The graph to query
+    */
+   public GraphQuery(ClassGraph graph) {
+      this.graph = graph;
+      forward = graph.forward();
+      reverse = forward.inverse();
+      int n = forward.size();
+      seen = new int[n];
+      seenBack = new int[n];
+      parent = new int[n];
+      parentBack = new int[n];
+      queue = new int[n];
+      queueBack = new int[n];
+   }
+
+   /**
+    * @param map A table of inspected classes
+    */
+   public GraphQuery(GraphMap<?> map) {
+      this(map.getGraph());
+   }
+
+   /**
+    * @param cls Name of a class
+    * @return Whether the class is in the graph
+    */
+   public boolean contains(String cls) {
+      return id(cls) != -1;
+   }
+
+   /**
+    * Get the classes a class refers to, directly or not.
+    * @param cls Name of the class
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search (0 is just the classes it refers to directly), the same as
+    * {@link ClassInspector#getAssociatedClasses(int)}.
+    * @return The classes found, nearest first. Doesn't include cls itself.
+    */
+   public String[] getDependencies(String cls, int depth) {
+      return search(forward,cls,depth);
+   }
+
+   /**
+    * Get the classes which refer to a class, directly or not: the ones
+    * which might be affected if it changes.
+    * @param cls Name of the class
+    * @param depth Depth of search: -1 for infinite, >= 0 for a depth-limited
+    * search (0 is just the classes which refer to it directly).
+    * @return The classes found, nearest first. Doesn't include cls itself.
+    */
+   public String[] getDependents(String cls, int depth) {
+      return search(reverse,cls,depth);
+   }
+
+   /*
+    * Breadth-first search, one level at a time so we know when to stop.
+    */
+   private String[] search(ClassGraph.Adjacency adjacency, String cls,
+            int depth) {
+      int source = id(cls);
+      if(source == -1) return new String[0];
+      int mark = nextSearch();
+      seen[source] = mark;
+      int head = 0;
+      int tail = 0;
+      queue[tail++] = source;
+      for(int d=0; head < tail && (depth == -1 || d <= depth); d++) {
+         int end = tail;
+         for(; head < end; head++) {
+            int v = queue[head];
+            for(int i=adjacency.start(v); i<adjacency.end(v); i++) {
+               int w = adjacency.target(i);
+               if(seen[w] != mark) {
+                  seen[w] = mark;
+                  queue[tail++] = w;
+               }
+            }
+         }
+      }
+      String[] found = new String[tail-1];
+      for(int i=1; i<tail; i++) found[i-1] = graph.getName(queue[i]);
+      return found;
+   }
+
+   /**
+    * Find the shortest chain of references from one class to another. The
+    * search goes forwards from one class and backwards from the other at
+    * the same time, always carrying on from whichever side has fewer classes
+    * left to look at, so it only has to look at a small part of a big
+    * graph.
+    * @param from Name of the class which has the references
+    * @param to Name of the class being referred to
+    * @return The classes in the chain, starting with from and ending with
+    * to, or null if from doesn't refer to to (directly or not).
+    */
+   public String[] getPath(String from, String to) {
+      int source = id(from);
+      int target = id(to);
+      if(source == -1 || target == -1) return null;
+      if(source == target) return new String[] { from };
+
+      int mark = nextSearch();
+      seen[source] = mark;
+      seenBack[target] = mark;
+      parent[source] = -1;
+      parentBack[target] = -1;
+      int head = 0, tail = 0, headBack = 0, tailBack = 0;
+      queue[tail++] = source;
+      queueBack[tailBack++] = target;
+
+      int meet = -1;
+      while(meet == -1 && head < tail && headBack < tailBack) {
+         /*
+          * Expand a whole level of one side. Every meeting point found in
+          * the level is equally far from this side, but not necessarily
+          * from the other, so the shortest one is picked at the end.
+          */
+         int best = Integer.MAX_VALUE;
+         if(tail-head <= tailBack-headBack) {
+            int end = tail;
+            for(; head < end; head++) {
+               int v = queue[head];
+               for(int i=forward.start(v); i<forward.end(v); i++) {
+                  int w = forward.target(i);
+                  if(seen[w] == mark) continue;
+                  seen[w] = mark;
+                  parent[w] = v;
+                  queue[tail++] = w;
+                  if(seenBack[w] == mark && length(w,parentBack) < best) {
+                     best = length(w,parentBack);
+                     meet = w;
+                  }
+               }
+            }
+         } else {
+            int end = tailBack;
+            for(; headBack < end; headBack++) {
+               int v = queueBack[headBack];
+               for(int i=reverse.start(v); i<reverse.end(v); i++) {
+                  int w = reverse.target(i);
+                  if(seenBack[w] == mark) continue;
+                  seenBack[w] = mark;
+                  parentBack[w] = v;
+                  queueBack[tailBack++] = w;
+                  if(seen[w] == mark && length(w,parent) < best) {
+                     best = length(w,parent);
+                     meet = w;
+                  }
+               }
+            }
+         }
+      }
+      if(meet == -1) return null;
+
+      int before = length(meet,parent);
+      String[] path = new String[before+length(meet,parentBack)+1];
+      for(int v=meet, i=before; v != -1; v=parent[v], i--) {
+         path[i] = graph.getName(v);
+      }
+      for(int v=parentBack[meet], i=before+1; v != -1; v=parentBack[v], i++) {
+         path[i] = graph.getName(v);
+      }
+      return path;
+   }
+
+   /*
+    * Number of steps back to the start of one side of the search.
+    */
+   private static int length(int v, int[] parents) {
+      int n = 0;
+      for(v=parents[v]; v != -1; v=parents[v]) n++;
+      return n;
+   }
+
+   private int id(String cls) {
+      int id = graph.getId(cls);
+      return id < forward.size() ? id : -1;
+   }
+
+   /*
+    * Each search has its own mark, so the seen arrays never have to be
+    * cleared (except when the marks run out).
+    */
+   private int nextSearch() {
+      if(++search == Integer.MAX_VALUE) {
+         Arrays.fill(seen,0);
+         Arrays.fill(seenBack,0);
+         search = 1;
+      }
+      return search;
+   }
+}
@@ -3,16 +3,25 @@
  */
 package uk.ac.aber.dcs.odj.reflection;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import com.mojang.left4kdead.G;
 
+import uk.co.slashingedge.utils.CsvWriter;
 import uk.co.slashingedge.utils.Log;
 
 /**
@@ -23,114 +32,551 @@ public final class Main {
    public static final String OUTPUT = "output.txt";
    public static final String TAB = "    ";
    public static Log log;
-   public static Log nodes;
-   public static Log edges;
+   public static CsvWriter nodes;
+   public static CsvWriter edges;
+   public static CsvWriter cycles;
    public static int recursion = -1;
    public static String file = "input.txt";
+   /**
+    * Column names of nodes.txt
+    */
+   public static final String[] HEADER = { "Id","Label","class","methods",
+            "constructors","public methods","private methods",
+            "static methods","abstract methods","native methods",
+            "synchronized methods","final methods","members",
+            "public members","private members","protected members",
+            "synchronized members","final members","interface classes",
+            "abstract classes","directly associated classes",
+            "indirectly associated classes","class size","connections" };
+   /**
+    * Jars/directories to read class files from. If this is set, classes are
+    * inspected with {@link BytecodeInspector} instead of reflection.
+    */
+   public static String classPath = null;
+   /**
+    * File to cache parsed classes in between runs (only used along with
+    * {@link #classPath}).
+    */
+   public static String cacheFile = null;
+   /**
+    * Load the classes on {@link #classPath} and inspect them with reflection,
+    * instead of reading their class files.
+    */
+   public static boolean reflect = false;
+   /**
+    * Treat the input as jars/directories to inspect every class in, rather
+    * than as a file listing the classes.
+    */
+   public static boolean scan = false;
+   /**
+    * If this is set, classes are inspected with reflection by a
+    * {@link BatchInspector}, trying to stay under this many bytes of memory.
+    */
+   public static long batchLimit = 0;
+   /**
+    * Subcommands which answer a question about the class graph (see
+    * {@link GraphQuery}) instead of writing out the whole graph.
+    */
+   public static final List<String> QUERIES =
+            Arrays.asList("dependencies","dependents","path");
+   /**
+    * Port that the server subcommand (see {@link AnalysisServer}) listens
+    * on.
+    */
+   public static int port = AnalysisServer.DEFAULT_PORT;
+   /**
+    * If {@link #shards} is set, this run only reads the class files for
+    * this shard of the input, and writes its part of the graph to
+    * {@link #PARTIAL} (see {@link ShardedAnalysis}).
+    */
+   public static int shard = 0;
+   public static int shards = 0;
+   public static final String PARTIAL = "shard%d.bin";
+   /**
+    * Partial files from all the shards of a run, to write the output files
+    * from instead of reading any class files.
+    */
+   public static String partials = null;
+   public static final String DIFF = "diff.txt";
+   /**
+    * If this is set, the classes in nodes.txt & edges.txt are also grouped
+    * by package (to this many levels) or by jar ("jar"), and the groups
+    * written to {@link #NODES_PKG} & {@link #EDGES_PKG} (see
+    * {@link PackageRollup}).
+    */
+   public static String rollupBy = null;
+   public static final String NODES_PKG = "nodes_pkg.txt";
+   public static final String EDGES_PKG = "edges_pkg.txt";
+   private static PackageRollup rollup = null;
+   // The columns of the row being printed to output.txt (see printMetrics)
+   private static final int[] scratch = new int[HEADER.length-3];
+   /*
+    * Number of classes associated with each class the warm-up searched from
+    * (to recursion levels), so that output.txt and nodes.txt don't search
+    * from them all over again. The keys are Class objects when inspecting
+    * with reflection, and class names when reading class files. An infinite
+    * search is counted from the reachability index instead.
+    */
+   private static final ConcurrentHashMap<Object, Integer> associated =
+            new ConcurrentHashMap<Object, Integer>();
    
    public static void main(String[] args)
-            throws InterruptedException, FileNotFoundException {
+            throws InterruptedException, IOException {
+      // On stderr, so it's kept apart from a query's answer on stdout
+      if(run(args)) Stats.report(System.err);
+   }
+   
+   /*
+    * Everything main() does. Returns false if there was nothing to do (i.e.
+    * the help was printed instead), so there's nothing to report.
+    */
+   private static boolean run(String[] args)
+            throws InterruptedException, IOException {
       if(args.length == 0) {
          printHelp();
-         return;
+         return false;
       }
-      if(args.length > 0) file = args[0];
-      if(args.length > 1) recursion = Integer.parseInt(args[1]);
-      for(String arg : args) {
-         if(arg == "/?" || arg.equalsIgnoreCase("-h") ||
+      String query = null;
+      boolean server = args[0].equals("server");
+      boolean diff = args[0].equals("diff");
+      if(QUERIES.contains(args[0]) || server || diff) {
+         query = server || diff ? null : args[0];
+         args = Arrays.copyOfRange(args,1,args.length);
+      }
+      Vector<String> positional = new Vector<String>();
+      for(int i=0; i<args.length; i++) {
+         String arg = args[i];
+         if(arg.equals("/?") || arg.equalsIgnoreCase("-h") ||
                   arg.equalsIgnoreCase("--help")) {
             printHelp();
-            return;
+            return false;
+         } else if((arg.equals("-cp") || arg.equals("-classpath")) &&
+                  i+1 < args.length) {
+            classPath = args[++i];
+         } else if(arg.equals("-scan")) {
+            scan = true;
+         } else if(arg.equals("-batch") && i+1 < args.length) {
+            batchLimit = Long.parseLong(args[++i]) << 20;
+            reflect = true;
+         } else if(arg.equals("-reflect")) {
+            reflect = true;
+         } else if(arg.equals("-cache") && i+1 < args.length) {
+            cacheFile = args[++i];
+         } else if(arg.equals("-parallel") && i+1 < args.length) {
+            int threads = Integer.parseInt(args[++i]);
+            if(threads <= 0) {
+               threads = Runtime.getRuntime().availableProcessors();
+            }
+            ClassInspector.setParallelism(threads);
+         } else if(arg.equals("-port") && i+1 < args.length) {
+            port = Integer.parseInt(args[++i]);
+         } else if(arg.equals("-shard") && i+1 < args.length) {
+            String[] split = args[++i].split("/");
+            shards = 0;
+            if(split.length == 2) {
+               try {
+                  shard = Integer.parseInt(split[0]);
+                  shards = Integer.parseInt(split[1]);
+               } catch(NumberFormatException e) {
+                  shards = 0;
+               }
+            }
+            // It has to be i/n, with 0 <= i < n
+            if(shards < 1 || shard < 0 || shard >= shards) {
+               printHelp();
+               return false;
+            }
+         } else if(arg.equals("-merge") && i+1 < args.length) {
+            partials = args[++i];
+         } else if(arg.equals("-rollup") && i+1 < args.length) {
+            rollupBy = args[++i];
+         } else {
+            positional.add(arg);
          }
       }
-      try {
-         log = new Log(OUTPUT);
-         nodes = new Log("nodes.txt");
-         edges = new Log("edges.txt");
-         System.out.println("Logging to "+OUTPUT+". Recursion lvl: "+recursion);
-      } catch (FileNotFoundException e1) {
+      if(positional.size() > 0) file = positional.get(0);
+      List<String> queryArgs = null;
+      if(query != null) {
+         // The whole graph's needed to answer, so recursion stays at -1
+         queryArgs = positional.subList(Math.min(1,positional.size()),
+                  positional.size());
+      } else if(diff) {
+         // Both versions come first
+         if(positional.size() > 2) {
+            recursion = Integer.parseInt(positional.get(2));
+         }
+      } else if(positional.size() > 1) {
+         recursion = Integer.parseInt(positional.get(1));
+      }
+      if(diff) {
+         if(positional.size() < 2 || reflect || shards > 0 ||
+                  partials != null) {
+            printHelp();
+            return false;
+         }
+         return printDiff(positional.get(0),positional.get(1));
+      }
+      if(scan) {
+         // Classes in the scanned jars may refer to each other
+         classPath = classPath == null ? file :
+                  classPath+File.pathSeparator+file;
+      }
+      boolean bytecode = (classPath != null || partials != null) && !reflect;
+      if((shards > 0 || partials != null) && !bytecode ||
+               shards > 0 && classPath == null) {
+         System.out.println("-shard and -merge read class files, so they " +
+                  "can't be used with -reflect or\n-batch, and -shard needs " +
+                  "a class path (-cp or -scan).");
+         return false;
+      }
+      if(classPath != null && reflect && batchLimit == 0) {
+         ClassInspector.setClassLoader(
+                  new ClassPathLoader(new ClassPath(classPath)));
+      } else if(bytecode && partials == null) {
+         BytecodeInspector.setClassPath(new ClassPath(classPath,true));
+         if(cacheFile != null) BytecodeInspector.setCache(loadCache());
+      }
+      // The shards have read everything, so there's nothing left to read
+      // (and nothing's overwritten if their files can't be used)
+      ShardedAnalysis.MergedGraph merged = null;
+      if(partials != null) {
+         Stats.Span span = Stats.begin(Stats.Phase.MERGE);
+         merged = ShardedAnalysis.merge(partials,recursion);
+         span.end();
+      }
+      if(server) {
+         if(!bytecode) {
+            System.out.println("The server reads class files, so it needs " +
+                     "a class path (-cp or -scan), and can't use -reflect " +
+                     "or -batch.");
+            return false;
+         }
+         // Even without a file, keep parsed classes around for re-scans
+         if(BytecodeInspector.getCache() == null) {
+            BytecodeInspector.setCache(new AnalysisCache(null));
+         }
          log = Log.logger;
-         nodes = Log.logger;
-         edges = Log.logger;
+         AnalysisServer s = new AnalysisServer(port);
+         s.load();
+         System.out.println("Listening on port "+port+". Recursion lvl: "+
+                  recursion+". Threads: "+ClassInspector.getParallelism());
+         s.serve();
+         return true;
       }
-
-      /**
-       * Parse input text file for list of classes to inspect
-       */
-      BufferedReader input = new BufferedReader(new FileReader(file));
-      Vector<String> inputArgs = new Vector<String>();
-      try {
-         while(input.ready()) {
-            String line = input.readLine();
-            // Ignore empty lines & lines which are comments
-            if(!line.startsWith("//") && line != "") {
-               inputArgs.add(line);
+      if(query != null || shards > 0) {
+         // Don't overwrite the output files of the last full run
+         log = Log.logger;
+      } else {
+         try {
+            // Before any of the files are opened, in case it's not a number
+            if(rollupBy != null) {
+               try {
+                  rollup = PackageRollup.forOption(rollupBy,classPath);
+               } catch(IllegalArgumentException e) {
+                  printHelp();
+                  return false;
+               }
             }
+            // Written in the background; nothing's dropped, as output.txt
+            // should have everything in it
+            log = new Log(OUTPUT).async(1 << 12,Log.Overflow.BLOCK);
+            nodes = new CsvWriter("nodes.txt");
+            edges = new CsvWriter("edges.txt");
+            cycles = new CsvWriter("cycles.txt");
+            System.out.println("Logging to "+OUTPUT+". Recursion lvl: "+
+                     recursion+". Threads: "+ClassInspector.getParallelism());
+         } catch (IOException e1) {
+            log = Log.logger;
+            nodes = new CsvWriter(System.out);
+            edges = new CsvWriter(System.out);
+            cycles = new CsvWriter(System.out);
          }
-      } catch (IOException e1) {
-         log.e("Error reading input file");
       }
+
+      ClassPathScanner scanner = null;
+      if(scan) {
+         scanner = new ClassPathScanner(new ClassPath(file),
+                  ClassInspector.getParallelism());
+      }
+      Vector<String> inputArgs = listClasses(scanner);
       args = inputArgs.toArray(new String[0]);
       
-      // Disable word-wrapping on all the output loggers.
+      if(shards > 0) {
+         List<String> own = ShardedAnalysis.select(inputArgs,shard,shards);
+         List<String> rows = ShardedAnalysis.analyse(own,scanner);
+         if(scanner != null) scanner.shutdown();
+         File partial = new File(String.format(PARTIAL,shard));
+         int n = ShardedAnalysis.writePartial(partial,own,rows);
+         System.out.println("Shard "+shard+"/"+shards+": wrote "+n+
+                  " classes and "+rows.size()+" rows to "+partial);
+         return true;
+      }
+      
+      // Disable word-wrapping on the output logger.
       log.width = -1;
-      nodes.width = -1;
-      edges.width = -1;
+      
+      if(batchLimit > 0) {
+         if(scanner != null) scanner.shutdown();
+         if(query != null) {
+            BatchInspector batch = new BatchInspector(
+                     new ClassPath(classPath == null ? "" : classPath),
+                     batchLimit);
+            Stats.Span span = Stats.begin(Stats.Phase.BATCHES);
+            batch.inspect(inputArgs,recursion);
+            span.end();
+            printQuery(new GraphQuery(batch.getAllInspectedClasses()),query,
+                     queryArgs);
+            return true;
+         }
+         printBatches(inputArgs);
+         closeOutput();
+         return true;
+      }
 
+      // The shards of a merged run have already read everything
+      if(merged != null) {
+         if(scanner != null) scanner.shutdown();
+         merged.warmUp(args);
+         if(query != null) {
+            printQuery(new GraphQuery(merged.getAllInspectedClasses()),query,
+                     queryArgs);
+            return true;
+         }
+         printMerged(merged,inputArgs);
+         closeOutput();
+         return true;
+      }
+      
       // "Warm up" the table: This means that the stats in output.txt and
       // nodes.txt will be the same (specifically the 'connections' column,
-      // which requires the hashtable to be fully populated beforehand)
-      for(String arg : args) {
-         try {
-            ClassInspector inspect = new ClassInspector(arg);
-            inspect.getAssociatedClasses(recursion);
-         } catch (Throwable e1) {
-         }
+      // which requires the hashtable to be fully populated beforehand).
+      // It's also the only search from the input classes: everything
+      // printed after this comes from the graph it built, and the counts
+      // of associated classes it found along the way.
+      warmUp(args,bytecode,scanner);
+      if(scanner != null) scanner.shutdown();
+      
+      if(query != null) {
+         GraphMap<?> map = bytecode ? BytecodeInspector.getAllInspectedClasses()
+                  : ClassInspector.getAllInspectedClasses();
+         printQuery(new GraphQuery(map),query,queryArgs);
+         if(bytecode) saveCache();
+         return true;
       }
       
       // Print information about each class in CSV form so I can paste the lines
       // into a spreadsheet easily.
+      Stats.Span span = Stats.begin(Stats.Phase.DETAILED_INFO);
       for(String arg : args) {
          try {
             log.pl("//START CLASS INFO: ",arg);
             //System.out.println(arg);
-            detailedClassInfo(arg);
+            if(bytecode) {
+               detailedBytecodeClassInfo(arg);
+            } else {
+               detailedClassInfo(arg);
+            }
             log.pl("//END CLASS INFO:",arg,"\n");
          } catch(Throwable e) {
             log.e(e.toString());
          }
       }
+      span.end();
+      
+      if(bytecode) {
+         printNameGraph(BYTECODE,inputArgs);
+         closeOutput();
+         saveCache();
+         return true;
+      }
       
       // Print nodes list to nodes.txt - to be used by Gephi
+      span = Stats.begin(Stats.Phase.NODES);
       printHeader(nodes);
-      nodes.delim = ",";
-      ClassMap map = (ClassMap) ClassInspector.getAllInspectedClasses().clone();
+      // Iterating goes over the graph as it is now, so the classes that
+      // classInfo() finds along the way don't get added to the list.
+      ClassMap map = ClassInspector.getAllInspectedClasses();
+      ClassGraph graph = map.getGraph();
+      ClassGraph.Adjacency forward = graph.forward();
+      StronglyConnectedComponents scc = graph.components();
       for(Class c : map.keySet()) {
-         classInfo(nodes,c);
-         nodes.pl();
+         Stats.Span row = Stats.begin(Stats.Timer.ROW,c.getName());
+         int[] columns = classInfo(nodes,c);
+         if(rollup != null) rollup.addNode(c.getName(),columns);
+         nodes.field(scc.getComponent(graph.getId(c.getName()))).endRow();
+         row.end();
       }
+      span.end();
+      span = Stats.begin(Stats.Phase.CYCLES);
+      printCycles(graph,forward,scc);
+      span.end();
       
       // Print edges list to edges.txt - to be used by Gephi
-      edges.pl("Source,Target,Weight");
-      edges.delim = ",";
-      for(Entry<Class,HashSet<Class>>e :
+      span = Stats.begin(Stats.Phase.EDGES);
+      HashSet<String> inputs = new HashSet<String>(inputArgs);
+      edges.row("Source","Target","Weight");
+      for(Entry<Class,Set<Class>> e :
          ClassInspector.getAllInspectedClasses().entrySet()) {
          for(Class c : e.getValue()) {
            if(e.getKey() != c && e.getKey().getName() != null &&
                      c.getName() != null) {
               int weight = 1;
-              if(inputArgs.contains(c.getName())) weight = 3;
-              edges.pl(c.getName(),e.getKey().getName(),weight);
+              if(inputs.contains(c.getName())) weight = 3;
+              edges.name(c.getName()).name(e.getKey().getName())
+                       .field(weight).endRow();
+              if(rollup != null) {
+                 rollup.addEdge(c.getName(),e.getKey().getName(),weight);
+              }
             }
          }
       }
+      span.end();
+      closeOutput();
       
-      // Reset the delimiters for all the output loggers in case I want to more
-      // logging later which isn't in comma-seperated-values form.
-      nodes.delim = " " ;
-      edges.delim = " ";
+      // Reset the delimiter in case I want to do more logging later which
+      // isn't in comma-seperated-values form.
       log.delim = " ";
-
+      
+      System.out.println("Reference cache: "+
+               ClassInspector.getReferenceCache());
+      return true;
+   }
+   
+   /*
+    * Close nodes.txt, edges.txt & cycles.txt, counting what went into them,
+    * and write out the rollup of them if there is one.
+    */
+   private static void closeOutput() throws IOException {
+      Stats.count(Stats.Counter.BYTES_WRITTEN,nodes.getBytesWritten()+
+               edges.getBytesWritten()+cycles.getBytesWritten());
+      nodes.close();
+      edges.close();
+      cycles.close();
+      if(rollup != null) printRollup();
+      log.close();
+   }
+   
+   /*
+    * Write the groups the rollup collected while nodes.txt & edges.txt
+    * were written.
+    */
+   private static void printRollup() throws IOException {
+      Stats.Span span = Stats.begin(Stats.Phase.ROLLUP);
+      CsvWriter groups = new CsvWriter(NODES_PKG);
+      CsvWriter references = new CsvWriter(EDGES_PKG);
+      try {
+         rollup.write(groups,references);
+      } finally {
+         Stats.count(Stats.Counter.BYTES_WRITTEN,groups.getBytesWritten()+
+                  references.getBytesWritten());
+         groups.close();
+         references.close();
+         rollup.close();
+         span.end();
+      }
+      System.out.println("Rollup: "+rollup);
+   }
+   
+   /**
+    * Read the list of classes to inspect: every class in the jars being
+    * scanned, or else the classes listed in {@link #file} (one per line,
+    * skipping comments).
+    * @param scanner The scanner to list classes with, or null to read them
+    * from the file
+    * @return Names of the classes
+    * @throws IOException If the jars or the file couldn't be read
+    */
+   static Vector<String> listClasses(ClassPathScanner scanner)
+            throws IOException {
+      Vector<String> inputArgs = new Vector<String>();
+      Stats.Span span = Stats.begin(Stats.Phase.LIST);
+      if(scanner != null) {
+         inputArgs.addAll(Arrays.asList(scanner.listClasses()));
+      } else {
+         /**
+          * Parse input text file for list of classes to inspect
+          */
+         BufferedReader input = new BufferedReader(new FileReader(file));
+         try {
+            while(input.ready()) {
+               String line = input.readLine();
+               // Ignore empty lines & lines which are comments
+               if(!line.startsWith("//") && line != "") {
+                  inputArgs.add(line);
+               }
+            }
+         } catch (IOException e1) {
+            log.e("Error reading input file");
+         } finally {
+            input.close();
+         }
+      }
+      span.end();
+      return inputArgs;
+   }
+   
+   /**
+    * Search from each class (to {@link #recursion} levels), so that
+    * everything they refer to is in the global table before any of it is
+    * printed. The number of classes associated with each one is kept, so
+    * printing them later doesn't search again (anything kept from an
+    * earlier warm-up is forgotten first, as the graph may have changed).
+    * @param classes Names of the classes
+    * @param bytecode Whether to read class files instead of using reflection
+    * @param scanner If not null, search from the classes in parallel using
+    * the scanner's threads
+    */
+   static void warmUp(String[] classes, boolean bytecode,
+            ClassPathScanner scanner) {
+      Stats.Span span = Stats.begin(Stats.Phase.WARM_UP);
+      associated.clear();
+      if(scanner != null) {
+         scanner.analyse(classes,new WarmUp(bytecode));
+      } else {
+         WarmUp warmUp = new WarmUp(bytecode);
+         for(String arg : classes) {
+            try {
+               warmUp.analyse(arg);
+            } catch (Throwable e1) {
+            }
+         }
+      }
+      span.end();
+   }
+   
+   /*
+    * Search from a class, so that its part of the graph is in the global
+    * table.
+    */
+   private static final class WarmUp implements ClassPathScanner.Analysis {
+      private final boolean bytecode;
+      
+      WarmUp(boolean bytecode) {
+         this.bytecode = bytecode;
+      }
+      
+      @Override
+      public void analyse(String cls) throws ClassNotFoundException {
+         if(bytecode) {
+            keep(cls,new BytecodeInspector(cls)
+                     .getAssociatedClasses(recursion).length);
+         } else {
+            // Same loader as detailedClassInfo(), so classes which aren't
+            // in the JDK are found too
+            Class c = getClassForName(cls);
+            keep(c,new ClassInspector(c)
+                     .getAssociatedClasses(recursion).length);
+         }
+      }
+      
+      /*
+       * The count from an infinite search isn't kept: printing the class
+       * looks it up in the reachability index instead, the same as for the
+       * classes the search found.
+       */
+      private void keep(Object cls, int n) {
+         if(recursion != -1) associated.put(cls,n);
+      }
    }
    
    /*
@@ -140,7 +586,9 @@ public final class Main {
     */
    public static Class getClassForName(String className)
             throws ClassNotFoundException {
-      return Class.forName(className,false,Main.class.getClassLoader());
+      ClassLoader loader = ClassInspector.getClassLoader();
+      if(loader == null) loader = Main.class.getClassLoader();
+      return Class.forName(className,false,loader);
    }
    
    public static void classInfo(Log l, String cls)
@@ -150,46 +598,38 @@ public final class Main {
    
    public static void classInfo(Log l, Class cls) {
       if(l != null) l.delim = ",";
-      
-      /*
-       * Get the number of connections to this class, from the global table.
-       * NOTE: This won't be accurate until you've run through your classes
-       * once!
-       */
+      ClassInspector inspect = new ClassInspector(cls);
+      printMetrics(l,inspect.getMetrics(),associated(inspect,cls),
+               connections(cls));
+      l.delim = " ";
+   }
+   
+   /**
+    * Same as {@link #classInfo(Log, Class)}, but for writing nodes.txt. The
+    * row isn't ended, so more columns can be added to it.
+    * @param w Where to write the CSV line
+    * @param cls The class
+    * @return The numeric columns written (see
+    * {@link #columns(ClassMetrics, int, int)})
+    * @throws IOException If the line couldn't be written
+    */
+   public static int[] classInfo(CsvWriter w, Class cls) throws IOException {
+      ClassInspector inspect = new ClassInspector(cls);
+      return printMetrics(w,inspect.getMetrics(),associated(inspect,cls),
+               connections(cls));
+   }
+   
+   /*
+    * Get the number of connections to this class, from the global table.
+    * NOTE: This won't be accurate until you've run through your classes
+    * once!
+    */
+   private static int connections(Class cls) {
       ClassMap map = ClassInspector.getAllInspectedClasses();
-      int connections = 0;
       if(map.containsKey(cls) && map.get(cls) != null) {
-         connections = map.get(cls).size();
+         return map.get(cls).size();
       }
-      
-      ClassInspector inspect = new ClassInspector(cls);
-      l.p(cls.getName(),
-               cls.getSimpleName(),
-               cls.getName(),
-               inspect.getNumberOfMethods(),
-               inspect.getNumberOfConstructors(),
-               inspect.getNumberOfPublicMethods(),
-               inspect.getMethodsWithModifiers(Modifier.PRIVATE),
-               inspect.getMethodsWithModifiers(Modifier.STATIC),
-               inspect.getMethodsWithModifiers(Modifier.ABSTRACT),
-               inspect.getMethodsWithModifiers(Modifier.NATIVE),
-               inspect.getFieldsWithModifiers(Modifier.SYNCHRONIZED),
-               inspect.getFieldsWithModifiers(Modifier.FINAL),
-               inspect.getNumberOfFields(),
-               inspect.getFieldsWithModifiers(Modifier.PUBLIC),
-               inspect.getFieldsWithModifiers(Modifier.PRIVATE),
-               inspect.getFieldsWithModifiers(Modifier.PROTECTED),
-               inspect.getFieldsWithModifiers(Modifier.SYNCHRONIZED),
-               inspect.getFieldsWithModifiers(Modifier.FINAL),
-               inspect.getReferredClassesWithModifiers(Modifier.INTERFACE),
-               inspect.getReferredClassesWithModifiers(Modifier.ABSTRACT),
-               inspect.getReferredClasses().length,
-               inspect.getAssociatedClasses(recursion).length,
-               inspect.getClassSize(),
-               connections
-      );
-      
-      l.delim = " ";
+      return 0;
    }
    
    public static void detailedClassInfo(String className)
@@ -197,6 +637,129 @@ public final class Main {
       detailedClassInfo(getClassForName(className));
    }
    
+   private static void saveCache() {
+      AnalysisCache cache = BytecodeInspector.getCache();
+      if(cache != null) {
+         try {
+            cache.save();
+         } catch(IOException e) {
+            Log.err("Unable to save cache",cacheFile,e.getMessage());
+         }
+         System.out.println("Analysis cache: "+cache);
+      }
+   }
+
+   /*
+    * The -cache file, as it was left by the last run.
+    */
+   private static AnalysisCache loadCache() {
+      AnalysisCache cache = new AnalysisCache(new File(cacheFile));
+      try {
+         cache.load();
+      } catch(IOException e) {
+         Log.err("Unable to load cache",cacheFile,e.getMessage());
+      }
+      return cache;
+   }
+
+   /*
+    * The diff subcommand: compare two versions of the input jars, writing
+    * the differences to DIFF (see GraphDiff). Classes are always read from
+    * their class files, with -cp being the libraries both versions use.
+    * Both versions share one cache, even without -cache, so whatever hasn't
+    * changed is only parsed once.
+    */
+   private static boolean printDiff(String before, String after)
+            throws IOException {
+      BytecodeInspector.setCache(cacheFile == null ? new AnalysisCache(null)
+               : loadCache());
+      log = Log.logger;
+      CsvWriter out;
+      try {
+         out = new CsvWriter(DIFF);
+         System.out.println("Writing differences to "+DIFF+
+                  ". Recursion lvl: "+recursion+". Threads: "+
+                  ClassInspector.getParallelism());
+      } catch(IOException e) {
+         out = new CsvWriter(System.out);
+      }
+      GraphDiff d = new GraphDiff(classPath);
+      try {
+         d.compare(before,after,out);
+      } finally {
+         Stats.count(Stats.Counter.BYTES_WRITTEN,out.getBytesWritten());
+         out.close();
+      }
+      System.out.println("Diff: "+d);
+      saveCache();
+      return true;
+   }
+   
+   /*
+    * Answer one of the QUERIES subcommands on stdout, or print the help if
+    * it's missing arguments.
+    */
+   private static void printQuery(GraphQuery graph, String query,
+            List<String> queryArgs) throws IOException {
+      CsvWriter out = new CsvWriter(System.out);
+      if(!printQuery(out,graph,query,queryArgs)) printHelp();
+      out.flush();
+   }
+   
+   /**
+    * Answer one of the {@link #QUERIES}, printing the classes found one per
+    * line (a path is printed in order, from the first class to the second),
+    * followed by a comment line saying how many there were.
+    * @param out Where to print the answer
+    * @param graph The graph to query
+    * @param query Which query
+    * @param queryArgs The query's arguments: the class(es), and the depth of
+    * search for dependencies & dependents (-1 if it's left out)
+    * @return False if there weren't enough arguments (nothing is printed)
+    * @throws IOException If the answer couldn't be printed
+    */
+   static boolean printQuery(CsvWriter out, GraphQuery graph, String query,
+            List<String> queryArgs) throws IOException {
+      int needed = query.equals("path") ? 2 : 1;
+      if(queryArgs.size() < needed) return false;
+      Stats.Span span = Stats.begin(Stats.Phase.QUERY);
+      try {
+         answer(out,graph,query,queryArgs,needed);
+      } finally {
+         span.end();
+      }
+      return true;
+   }
+   
+   private static void answer(CsvWriter out, GraphQuery graph, String query,
+            List<String> queryArgs, int needed) throws IOException {
+      for(String cls : queryArgs.subList(0,needed)) {
+         if(!graph.contains(cls)) {
+            out.field("//Class not found: "+cls).endRow();
+            return;
+         }
+      }
+      String cls = queryArgs.get(0);
+      long start = System.nanoTime();
+      String[] found;
+      if(query.equals("path")) {
+         found = graph.getPath(cls,queryArgs.get(1));
+      } else {
+         int depth = queryArgs.size() > 1 ?
+                  Integer.parseInt(queryArgs.get(1)) : -1;
+         found = query.equals("dependencies") ?
+                  graph.getDependencies(cls,depth) :
+                  graph.getDependents(cls,depth);
+      }
+      long time = System.nanoTime()-start;
+      if(found == null) {
+         out.field("//"+cls+" doesn't depend on "+queryArgs.get(1)).endRow();
+         found = new String[0];
+      }
+      for(String c : found) out.name(c).endRow();
+      out.field("//"+found.length+" classes in "+(time/1000)+"us").endRow();
+   }
+   
    public static void detailedClassInfo(Class cls) {
       printHeader(log);
       classInfo(log,cls);
@@ -204,7 +767,345 @@ public final class Main {
       log.delim = ",";
       log.pl("method,number arguments");
       for(Method m : cls.getDeclaredMethods()) {
-         log.pl(m.getName(),m.getParameterTypes().length);
+         log.row().str(m.getName()).i(m.getParameterTypes().length)
+                  .endLine();
+      }
+      log.delim = " ";
+      log.pl();
+   }
+   
+   /*
+    * A graph of classes by name, and where to get the details of each class
+    * in it from.
+    */
+   interface NameGraph {
+      ClassNameMap getAllInspectedClasses();
+      ClassMetrics getMetrics(String cls);
+      int getAssociated(String cls);
+   }
+   
+   static final NameGraph BYTECODE = new NameGraph() {
+      @Override
+      public ClassNameMap getAllInspectedClasses() {
+         return BytecodeInspector.getAllInspectedClasses();
+      }
+      
+      @Override
+      public ClassMetrics getMetrics(String cls) {
+         return BytecodeInspector.getMetrics(cls);
+      }
+      
+      @Override
+      public int getAssociated(String cls) {
+         return associated(cls);
+      }
+   };
+   
+   /*
+    * Same as the end of main(), but for a graph of class names.
+    */
+   private static void printNameGraph(NameGraph graph,
+            Vector<String> inputArgs) throws IOException {
+      Stats.Span span = Stats.begin(Stats.Phase.NODES);
+      ClassNameMap map = graph.getAllInspectedClasses();
+      // The components are of the graph as it is now, the same as the
+      // classes listed (searching for associated classes can add more)
+      ClassGraph.Adjacency forward = map.getGraph().forward();
+      StronglyConnectedComponents scc = map.getGraph().components();
+      printNodes(nodes,graph,scc,rollup);
+      span.end();
+      span = Stats.begin(Stats.Phase.CYCLES);
+      printCycles(map.getGraph(),forward,scc);
+      span.end();
+      
+      span = Stats.begin(Stats.Phase.EDGES);
+      printEdges(edges,map,inputArgs,rollup);
+      span.end();
+      
+      log.delim = " ";
+   }
+   
+   /**
+    * Write nodes.txt for a graph of class names: the header, then a row for
+    * each class in the graph.
+    * @param w Where to write it
+    * @param graph The graph
+    * @param scc The graph's components, found before anything's written
+    * @param rollup Where to add up the rows by group as well, or null
+    * @throws IOException If it couldn't be written
+    */
+   static void printNodes(CsvWriter w, NameGraph graph,
+            StronglyConnectedComponents scc, PackageRollup rollup)
+            throws IOException {
+      printHeader(w);
+      for(String c : graph.getAllInspectedClasses().keySet()) {
+         Stats.Span row = Stats.begin(Stats.Timer.ROW,c);
+         int[] columns = printNode(w,graph,scc,c);
+         if(rollup != null) rollup.addNode(c,columns);
+         row.end();
+      }
+   }
+   
+   /**
+    * Write one class' row of nodes.txt.
+    * @param w Where to write it
+    * @param graph The graph the class is in
+    * @param scc The graph's components (the class must be in one)
+    * @param cls Name of the class
+    * @return The numeric columns written (see
+    * {@link #columns(ClassMetrics, int, int)})
+    * @throws IOException If it couldn't be written
+    */
+   static int[] printNode(CsvWriter w, NameGraph graph,
+            StronglyConnectedComponents scc, String cls) throws IOException {
+      ClassNameMap map = graph.getAllInspectedClasses();
+      int[] columns = printMetrics(w,graph.getMetrics(cls),
+               graph.getAssociated(cls),connections(map,cls));
+      w.field(scc.getComponent(map.getGraph().getId(cls))).endRow();
+      return columns;
+   }
+   
+   /**
+    * Write edges.txt for a graph of class names. References to the classes
+    * which were asked for are weighted more heavily.
+    * @param w Where to write it
+    * @param map The graph
+    * @param inputArgs Names of the classes which were asked for
+    * @param rollup Where to add up the edges by group as well, or null
+    * @throws IOException If it couldn't be written
+    */
+   static void printEdges(CsvWriter w, ClassNameMap map,
+            Collection<String> inputArgs, PackageRollup rollup)
+            throws IOException {
+      HashSet<String> inputs = new HashSet<String>(inputArgs);
+      w.row("Source","Target","Weight");
+      for(Entry<String,Set<String>> e : map.entrySet()) {
+         for(String c : e.getValue()) {
+            if(!e.getKey().equals(c)) {
+               int weight = 1;
+               if(inputs.contains(c)) weight = 3;
+               w.name(c).name(e.getKey()).field(weight).endRow();
+               if(rollup != null) rollup.addEdge(c,e.getKey(),weight);
+            }
+         }
+      }
+   }
+   
+   /*
+    * Inspect the classes in batches, and print everything from the names &
+    * numbers that were copied out of them. There are no Class objects left
+    * by then, so the list of methods isn't printed to output.txt.
+    */
+   private static void printBatches(Vector<String> inputArgs)
+            throws IOException {
+      final BatchInspector batch = new BatchInspector(
+               new ClassPath(classPath == null ? "" : classPath),batchLimit);
+      Stats.Span span = Stats.begin(Stats.Phase.BATCHES);
+      batch.inspect(inputArgs,recursion);
+      span.end();
+      NameGraph graph = new NameGraph() {
+         @Override
+         public ClassNameMap getAllInspectedClasses() {
+            return batch.getAllInspectedClasses();
+         }
+         
+         @Override
+         public ClassMetrics getMetrics(String cls) {
+            return batch.getMetrics(cls);
+         }
+         
+         @Override
+         public int getAssociated(String cls) {
+            return batch.getNumberOfAssociatedClasses(cls,recursion);
+         }
+      };
+      
+      for(String arg : inputArgs) {
+         log.pl("//START CLASS INFO: ",arg);
+         printHeader(log);
+         log.delim = ",";
+         printMetrics(log,graph.getMetrics(arg),graph.getAssociated(arg),
+                  connections(graph.getAllInspectedClasses(),arg));
+         log.delim = " ";
+         log.pl();
+         log.pl("//END CLASS INFO:",arg,"\n");
+      }
+      printNameGraph(graph,inputArgs);
+      System.out.println("Batches: "+batch);
+   }
+   
+   /*
+    * Print everything from the partial files of a sharded run: the shards
+    * have already worked out the metrics & methods, so no class files are
+    * read.
+    */
+   private static void printMerged(ShardedAnalysis.MergedGraph graph,
+            Vector<String> inputArgs) throws IOException {
+      Stats.Span span = Stats.begin(Stats.Phase.DETAILED_INFO);
+      for(String arg : inputArgs) {
+         log.pl("//START CLASS INFO: ",arg);
+         ShardedAnalysis.Methods methods = graph.getMethods(arg);
+         if(methods == null) {
+            log.e(new ClassNotFoundException(arg).toString());
+            continue;
+         }
+         detailedClassInfo(graph,arg,methods);
+         log.pl("//END CLASS INFO:",arg,"\n");
+      }
+      span.end();
+      printNameGraph(graph,inputArgs);
+   }
+   
+   /*
+    * Print the detailed info about one of the classes that was asked for to
+    * output.txt: its row of nodes.txt, and its methods.
+    */
+   private static void detailedClassInfo(NameGraph graph, String cls,
+            ShardedAnalysis.Methods methods) {
+      printHeader(log);
+      log.delim = ",";
+      printMetrics(log,graph.getMetrics(cls),graph.getAssociated(cls),
+               connections(graph.getAllInspectedClasses(),cls));
+      log.delim = " ";
+      log.pl("\n-----------------------");
+      log.delim = ",";
+      log.pl("method,number arguments");
+      for(int i=0; i<methods.size(); i++) {
+         log.row().str(methods.getName(i)).i(methods.getNumberOfArgs(i))
+                  .endLine();
+      }
+      log.delim = " ";
+      log.pl();
+   }
+   
+   
+   /**
+    * Same as {@link #classInfo(Log, Class)}, but reads the class' details from
+    * its class file. Classes which aren't on the class path have all their
+    * counts set to 0.
+    * @param l Log to print the CSV line to
+    * @param cls Name of the class
+    */
+   public static void bytecodeClassInfo(Log l, String cls) {
+      if(l != null) l.delim = ",";
+      printMetrics(l,BytecodeInspector.getMetrics(cls),associated(cls),
+               connections(BytecodeInspector.getAllInspectedClasses(),cls));
+      l.delim = " ";
+   }
+   
+   /**
+    * Same as {@link #bytecodeClassInfo(Log, String)}, but for writing
+    * nodes.txt. The row isn't ended, so more columns can be added to it.
+    * @param w Where to write the CSV line
+    * @param cls Name of the class
+    * @throws IOException If the line couldn't be written
+    */
+   public static void bytecodeClassInfo(CsvWriter w, String cls)
+            throws IOException {
+      printMetrics(w,BytecodeInspector.getMetrics(cls),associated(cls),
+               connections(BytecodeInspector.getAllInspectedClasses(),cls));
+   }
+   
+   static int connections(ClassNameMap map, String cls) {
+      if(map.containsKey(cls) && map.get(cls) != null) {
+         return map.get(cls).size();
+      }
+      return 0;
+   }
+   
+   /*
+    * Number of classes associated with a class, found by the warm-up if it
+    * searched from it, or else by searching now.
+    */
+   private static int associated(ClassInspector inspect, Class cls) {
+      Integer n = associated.get(cls);
+      return n != null ? n : inspect.getNumberOfAssociatedClasses(recursion);
+   }
+   
+   static int associated(String cls) {
+      Integer n = associated.get(cls);
+      if(n != null) return n;
+      if(BytecodeInspector.getClassFile(cls) == null) return 0;
+      try {
+         return new BytecodeInspector(cls)
+                  .getNumberOfAssociatedClasses(recursion);
+      } catch(ClassNotFoundException e) {
+         // Can't happen: we've just found its class file
+         throw new IllegalStateException(e);
+      }
+   }
+   
+   /*
+    * Print the columns of nodes.txt (see printHeader()) for one class.
+    */
+   private static void printMetrics(Log l, ClassMetrics m, int associated,
+            int connections) {
+      int[] columns = columns(m,associated,connections,scratch);
+      Log.Row row = l.row().str(m.getName()).str(m.getSimpleName())
+               .str(m.getName());
+      for(int c : columns) row.i(c);
+      row.end();
+   }
+   
+   private static int[] printMetrics(CsvWriter w, ClassMetrics m,
+            int associated, int connections) throws IOException {
+      w.name(m.getName()).field(m.getSimpleName()).name(m.getName());
+      int[] columns = columns(m,associated,connections);
+      for(int c : columns) w.field(c);
+      return columns;
+   }
+   
+   /*
+    * The numeric columns of nodes.txt: everything after the class' names.
+    */
+   static int[] columns(ClassMetrics m, int associated,
+            int connections) {
+      return columns(m,associated,connections,new int[HEADER.length-3]);
+   }
+
+   /*
+    * Same as columns(), but into an array that's already been made, so
+    * printing a row to output.txt doesn't make one each time.
+    */
+   private static int[] columns(ClassMetrics m, int associated,
+            int connections, int[] into) {
+      int i = 0;
+      into[i++] = m.getNumberOfMethods();
+      into[i++] = m.getNumberOfConstructors();
+      into[i++] = m.getMethodsWithModifiers(Modifier.PUBLIC);
+      into[i++] = m.getMethodsWithModifiers(Modifier.PRIVATE);
+      into[i++] = m.getMethodsWithModifiers(Modifier.STATIC);
+      into[i++] = m.getMethodsWithModifiers(Modifier.ABSTRACT);
+      into[i++] = m.getMethodsWithModifiers(Modifier.NATIVE);
+      into[i++] = m.getMethodsWithModifiers(Modifier.SYNCHRONIZED);
+      into[i++] = m.getMethodsWithModifiers(Modifier.FINAL);
+      into[i++] = m.getNumberOfFields();
+      into[i++] = m.getFieldsWithModifiers(Modifier.PUBLIC);
+      into[i++] = m.getFieldsWithModifiers(Modifier.PRIVATE);
+      into[i++] = m.getFieldsWithModifiers(Modifier.PROTECTED);
+      into[i++] = m.getFieldsWithModifiers(Modifier.SYNCHRONIZED);
+      into[i++] = m.getFieldsWithModifiers(Modifier.FINAL);
+      into[i++] = m.getReferredClassesWithModifiers(Modifier.INTERFACE);
+      into[i++] = m.getReferredClassesWithModifiers(Modifier.ABSTRACT);
+      into[i++] = m.getNumberOfReferredClasses();
+      into[i++] = associated;
+      into[i++] = m.getClassSize();
+      into[i++] = connections;
+      return into;
+   }
+   
+   public static void detailedBytecodeClassInfo(String className)
+            throws ClassNotFoundException {
+      ClassFile cf = new BytecodeInspector(className).getClassFile();
+      printHeader(log);
+      bytecodeClassInfo(log,className);
+      log.pl("\n-----------------------");
+      log.delim = ",";
+      log.pl("method,number arguments");
+      String[] methods = cf.getMethodNames();
+      for(int i=0; i<methods.length; i++) {
+         log.row().str(methods[i]).i(cf.getNumberOfMethodArgs(i))
+                  .endLine();
       }
       log.delim = " ";
       log.pl();
@@ -212,27 +1113,156 @@ public final class Main {
    
    public static void printHeader(Log l) {
       l.delim = ",";
-      l.p("Id","Label","class","methods","constructors","public methods",
-               "private methods","static methods","abstract methods",
-               "native methods","synchronized methods","final methods",
-               "members","public members","private members","protected members",
-               "synchronized members","final members", "interface classes",
-               "abstract classes", "directly associated classes",
-               "indirectly associated classes", "class size", "connections");
+      l.p((Object[]) HEADER);
       
       l.delim = " ";
       l.pl();
    }
    
+   /**
+    * Print the header of nodes.txt: the same columns as output.txt, plus the
+    * number of the strongly connected component each class is in.
+    * @param w Where to write the header
+    * @throws IOException If it couldn't be written
+    */
+   public static void printHeader(CsvWriter w) throws IOException {
+      for(String h : HEADER) w.field(h);
+      w.field("component").endRow();
+   }
+   
+   /*
+    * Write cycles.txt: each group of classes which all depend on each other
+    * (a strongly connected component of more than one class), biggest
+    * first, along with the number of references between classes in the
+    * group. Every class refers to itself, so those references don't count
+    * as cycles.
+    */
+   private static void printCycles(ClassGraph graph,
+            ClassGraph.Adjacency forward, final StronglyConnectedComponents scc)
+            throws IOException {
+      List<Integer> found = new ArrayList<Integer>();
+      for(int c=0; c<scc.getCount(); c++) {
+         if(scc.getSize(c) > 1) found.add(c);
+      }
+      Collections.sort(found,new Comparator<Integer>() {
+         @Override
+         public int compare(Integer a, Integer b) {
+            int size = scc.getSize(b)-scc.getSize(a);
+            return size != 0 ? size : a-b;
+         }
+      });
+      
+      cycles.row("component","classes","references","members");
+      int classes = 0;
+      for(int c : found) {
+         String[] members = new String[scc.getSize(c)];
+         int references = 0;
+         for(int i=scc.start(c); i<scc.end(c); i++) {
+            int v = scc.member(i);
+            members[i-scc.start(c)] = graph.getName(v);
+            for(int e=forward.start(v); e<forward.end(v); e++) {
+               int w = forward.target(e);
+               if(w != v && scc.getComponent(w) == c) references++;
+            }
+         }
+         Arrays.sort(members);
+         StringBuilder names = new StringBuilder();
+         for(String m : members) {
+            if(names.length() > 0) names.append(' ');
+            names.append(m);
+         }
+         cycles.field(c).field(members.length).field(references)
+                  .field(names).endRow();
+         classes += members.length;
+      }
+      System.out.println("Cycles: "+found.size()+" groups of classes ("+
+               classes+" classes) depend on each other, out of "+
+               scc.size()+" classes");
+   }
+   
    public static void printHelp() {
       System.out.println("No arguments given to program. Usage:\n");
-      System.out.println("\tjava Main <input file> [recursion depth=-1]\n");
+      System.out.println("\tjava Main [-cp <class path> [-cache <file>] " +
+               "[-reflect]] [-batch <MB>]\n\t\t[-parallel <threads>] " +
+               "[-scan] [-rollup <depth>|jar] <input file>\n" +
+               "\t\t[recursion depth=-1]\n");
       System.out.println("Where recursion depth is the maximum depth any" +
       		" recursive searches should\n" +
       		"terminate at. -1 for infinite recursion.");
       System.out.println("Input file should be a list of java classes " +
       		"(including their package names),");
       System.out.println("one class per line.");
+      System.out.println("If -cp is given, classes are read straight from " +
+               "the class files in those\n" +
+               "jars/directories (separated by '"+File.pathSeparator+
+               "') and never loaded. JDK classes which\n" +
+               "aren't in them are read from the JDK. Classes used only " +
+               "inside method bodies\n" +
+               "count as references too, so there are usually more of them " +
+               "than with -reflect\n" +
+               "(which only sees the types in fields & method signatures).\n" +
+               "-cache keeps the parsed classes in that file between runs, " +
+               "so only class\n" +
+               "files which have changed since the last run are parsed.\n" +
+               "-reflect loads the classes on the -cp class path instead, " +
+               "and inspects them\n" +
+               "with reflection.");
+      System.out.println("-parallel searches the class graph with that " +
+               "many threads (0 for one per\n" +
+               "CPU core).");
+      System.out.println("-scan inspects every class in the jars/directories "+
+               "given instead of an input\n" +
+               "file (a class path, separated by '"+File.pathSeparator+"'), " +
+               "using the -parallel threads.");
+      System.out.println("-batch inspects classes with reflection, a batch " +
+               "at a time in class loaders\n" +
+               "which are thrown away afterwards, staying under that many " +
+               "MB of memory.");
+      System.out.println("-rollup also groups the classes in nodes.txt and " +
+               "edges.txt by package (the\n" +
+               "first <depth> levels of it, at least 1) or by jar, and " +
+               "writes the groups and\n" +
+               "the references between them to "+NODES_PKG+" and "+
+               EDGES_PKG+".");
+      System.out.println("\nQueries: java Main <query> [options] <input file> "+
+               "<class> [<class>|depth]\n" +
+               "inspects the classes in the input file the same way, and " +
+               "then answers the query\n" +
+               "instead of writing the output files:\n" +
+               "\tdependencies <class> [depth]: what the class refers to\n" +
+               "\tdependents <class> [depth]: what refers to the class\n" +
+               "\tpath <from> <to>: the shortest chain of references from " +
+               "one class to the other");
+      System.out.println("\nServer: java Main server [-port <port>] " +
+               "-cp <class path>|-scan [options]\n" +
+               "\t\t<input file> [recursion depth=-1]\n" +
+               "inspects the classes once, keeps them in memory, and " +
+               "answers questions about\n" +
+               "them on that port (default "+AnalysisServer.DEFAULT_PORT+
+               ", local connections only). Send \"help\"\n" +
+               "for the commands, and \"rescan\" after changing the jars.");
+      System.out.println("\nShards: java Main -shard <i>/<n> -cp <class path>"+
+               "|-scan [options] <input file>\n" +
+               "\t\t[recursion depth=-1]\n" +
+               "reads the class files the i'th of n shards of the input " +
+               "(counting from 0) needs,\n" +
+               "and writes what it found to "+PARTIAL.replace("%d","<i>")+
+               " instead of the output files. Then:\n" +
+               "\tjava Main -merge <partial files> [options] <input file> " +
+               "[recursion depth=-1]\n" +
+               "(partial files separated by '"+File.pathSeparator+"') " +
+               "writes the same output files as a single\n" +
+               "run would, without reading any class files.");
+      System.out.println("\nDiff: java Main diff [-cp <libraries>] [options] "+
+               "<before> <after>\n" +
+               "\t\t[recursion depth=-1]\n" +
+               "inspects every class in two versions of some jars/directories "+
+               "(each a class path,\n" +
+               "separated by '"+File.pathSeparator+"'), and writes the " +
+               "classes and references added or\n" +
+               "removed, and the changes to each class' numbers in " +
+               "nodes.txt, to "+DIFF+".\n" +
+               "Class files which are the same in both are only parsed once.");
    }
 
 }
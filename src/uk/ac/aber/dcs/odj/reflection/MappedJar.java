@@ -0,0 +1,330 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * <p>A jar file mapped into memory. The jar's central directory is read
+ * once when it's opened, and entries are found by looking up their names in
+ * that. Nothing is copied out of the jar to read an entry that was stored
+ * without compression: the entry is given out as a read-only slice of the
+ * mapped file. Compressed entries are inflated from the mapped file into a
+ * buffer from a {@link BufferPool}, through a pair of small byte arrays
+ * (the Inflater in Java 7 only reads and writes arrays).</p>
+ *
+ * <p>Jars bigger than 2GB can't be mapped into a single buffer, so aren't
+ * supported.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class MappedJar implements Closeable {
+   // Signatures & header sizes, from the zip file format specification
+   private static final int LOCAL_HEADER = 0x04034b50;
+   private static final int LOCAL_HEADER_SIZE = 30;
+   private static final int CENTRAL_HEADER = 0x02014b50;
+   private static final int CENTRAL_HEADER_SIZE = 46;
+   private static final int END = 0x06054b50;
+   private static final int END_SIZE = 22;
+   private static final int ZIP64_END = 0x06064b50;
+   private static final int ZIP64_LOCATOR = 0x07064b50;
+   private static final int ZIP64_LOCATOR_SIZE = 20;
+   private static final int ZIP64_EXTRA = 0x0001;
+   private static final int STORED = 0;
+   private static final int DEFLATED = 8;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // Bytes copied in & out of an Inflater at a time
+   private static final int CHUNK = 1 << 13;
+
+   // Inflaters hold on to native memory, so are worth keeping around, along
+   // with the arrays they're used with
+   private static final ConcurrentLinkedQueue<Inflating> inflaters =
+            new ConcurrentLinkedQueue<Inflating>();
+
+   private final File file;
+   private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+   private MappedByteBuffer map;
+
+   /**
+    * Map a jar into memory and read its central directory.
+    * @param file The jar file
+    * @throws IOException If the file couldn't be read, isn't a jar (or zip)
+    * file, or is too big to map.
+    */
+   public MappedJar(File file) throws IOException {
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file,"r");
+      try {
+         FileChannel channel = raf.getChannel();
+         if(channel.size() > Integer.MAX_VALUE) {
+            throw new ZipException("Jar too big to map: "+file);
+         }
+         map = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+      } finally {
+         // The mapping stays valid after the file is closed
+         raf.close();
+      }
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      try {
+         readCentralDirectory();
+      } catch(RuntimeException e) {
+         throw new ZipException("Malformed jar file: "+file+" ("+e+")");
+      }
+   }
+
+   /*
+    * The end of central directory record is the last thing in the file,
+    * followed only by a comment of up to 64K. Zip64 files have another
+    * record (with 64-bit sizes) just before it.
+    */
+   private void readCentralDirectory() throws ZipException {
+      int end = -1;
+      int stop = Math.max(0,map.capacity()-END_SIZE-0xFFFF);
+      for(int i=map.capacity()-END_SIZE; i>=stop; i--) {
+         if(map.getInt(i) == END) {
+            end = i;
+            break;
+         }
+      }
+      if(end == -1) throw new ZipException("Not a jar file: "+file);
+      long count = map.getShort(end+10) & 0xFFFF;
+      long offset = map.getInt(end+16) & 0xFFFFFFFFL;
+      int locator = end-ZIP64_LOCATOR_SIZE;
+      if(locator >= 0 && map.getInt(locator) == ZIP64_LOCATOR) {
+         int zip64 = checkedOffset(map.getLong(locator+8));
+         if(map.getInt(zip64) != ZIP64_END) {
+            throw new ZipException("Malformed zip64 jar file: "+file);
+         }
+         count = map.getLong(zip64+32);
+         offset = map.getLong(zip64+48);
+      }
+
+      int pos = checkedOffset(offset);
+      byte[] name = new byte[256];
+      for(long i=0; i<count; i++) {
+         if(map.getInt(pos) != CENTRAL_HEADER) {
+            throw new ZipException("Malformed central directory: "+file);
+         }
+         int method = map.getShort(pos+10) & 0xFFFF;
+         long crc = map.getInt(pos+16) & 0xFFFFFFFFL;
+         long compressed = map.getInt(pos+20) & 0xFFFFFFFFL;
+         long size = map.getInt(pos+24) & 0xFFFFFFFFL;
+         int nameLength = map.getShort(pos+28) & 0xFFFF;
+         int extraLength = map.getShort(pos+30) & 0xFFFF;
+         int commentLength = map.getShort(pos+32) & 0xFFFF;
+         long local = map.getInt(pos+42) & 0xFFFFFFFFL;
+
+         // Sizes & offsets that don't fit in 32 bits are in a zip64 extra
+         // field, in this order, but only the ones that didn't fit.
+         int extra = pos+CENTRAL_HEADER_SIZE+nameLength;
+         for(int e=extra; e+4<=extra+extraLength; ) {
+            int id = map.getShort(e) & 0xFFFF;
+            int length = map.getShort(e+2) & 0xFFFF;
+            if(id == ZIP64_EXTRA) {
+               int f = e+4;
+               if(size == 0xFFFFFFFFL) {
+                  size = map.getLong(f);
+                  f += 8;
+               }
+               if(compressed == 0xFFFFFFFFL) {
+                  compressed = map.getLong(f);
+                  f += 8;
+               }
+               if(local == 0xFFFFFFFFL) local = map.getLong(f);
+               break;
+            }
+            e += 4+length;
+         }
+
+         if(nameLength > name.length) name = new byte[nameLength];
+         ByteBuffer n = map.duplicate();
+         n.position(pos+CENTRAL_HEADER_SIZE);
+         n.get(name,0,nameLength);
+         entries.put(new String(name,0,nameLength,UTF8),
+                  new Entry(method,crc,compressed,size,local));
+         pos += CENTRAL_HEADER_SIZE+nameLength+extraLength+commentLength;
+      }
+   }
+
+   private int checkedOffset(long offset) throws ZipException {
+      if(offset < 0 || offset >= map.capacity()) {
+         throw new ZipException("Malformed jar file: "+file);
+      }
+      return (int) offset;
+   }
+
+   /**
+    * @return The jar file
+    */
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * @param name Path of an entry in the jar
+    * @return Whether the jar has an entry with that path
+    */
+   public boolean contains(String name) {
+      return entries.containsKey(name);
+   }
+
+   /**
+    * @return Paths of all the entries in the jar, in no particular order
+    */
+   public String[] getNames() {
+      return entries.keySet().toArray(new String[0]);
+   }
+
+   /**
+    * @return Number of entries in the jar
+    */
+   public int size() {
+      return entries.size();
+   }
+
+   /**
+    * @param name Path of an entry in the jar
+    * @return The entry's checksum, in the form
+    * {@link ClassPath#getChecksum(String)} gives it, or -1 if there's no
+    * such entry.
+    */
+   public long getChecksum(String name) {
+      Entry e = entries.get(name);
+      if(e == null) return -1;
+      return e.size << 32 | e.crc;
+   }
+
+   /**
+    * Get the contents of an entry.
+    * @param name Path of the entry in the jar
+    * @param pool Where to get a buffer from, if the entry is compressed. If
+    * this is null, a new buffer is allocated.
+    * @return The entry's contents, or null if there's no such entry. If it
+    * was stored without compression, this is a read-only slice of the
+    * mapped jar; otherwise it's a buffer from the pool, which should be
+    * given back to it once it's been used.
+    * @throws IOException If the entry couldn't be read or inflated
+    */
+   public ByteBuffer get(String name, BufferPool pool) throws IOException {
+      Entry e = entries.get(name);
+      if(e == null) return null;
+      ByteBuffer data;
+      try {
+         int local = checkedOffset(e.local);
+         if(map.getInt(local) != LOCAL_HEADER) {
+            throw new ZipException("Malformed local header: "+name);
+         }
+         // The local header's name & extra field can differ from the
+         // central directory's, so its own lengths have to be used
+         int start = local+LOCAL_HEADER_SIZE+(map.getShort(local+26) & 0xFFFF)+
+                  (map.getShort(local+28) & 0xFFFF);
+         if(start+e.compressed > map.capacity()) {
+            throw new ZipException("Truncated jar entry: "+name);
+         }
+         data = map.duplicate();
+         data.position(start);
+         data.limit((int) (start+e.compressed));
+      } catch(RuntimeException ex) {
+         throw new ZipException("Malformed jar entry: "+name+" ("+ex+")");
+      }
+      if(e.method == STORED) {
+         return data.slice().asReadOnlyBuffer();
+      } else if(e.method != DEFLATED) {
+         throw new ZipException("Unsupported compression method "+e.method+
+                  ": "+name);
+      } else if(e.size > Integer.MAX_VALUE) {
+         throw new ZipException("Entry too big: "+name);
+      }
+      return inflate(name,data.slice(),(int) e.size,pool);
+   }
+
+   private static ByteBuffer inflate(String name, ByteBuffer in, int size,
+            BufferPool pool) throws IOException {
+      ByteBuffer out = pool == null ? ByteBuffer.allocate(size) :
+               pool.acquire(size);
+      Inflating z = inflaters.poll();
+      if(z == null) z = new Inflating();
+      Inflater inflater = z.inflater;
+      try {
+         while(out.hasRemaining() && !inflater.finished()) {
+            if(inflater.needsInput()) {
+               if(!in.hasRemaining()) break;
+               int n = Math.min(CHUNK,in.remaining());
+               in.get(z.in,0,n);
+               inflater.setInput(z.in,0,n);
+            }
+            int n;
+            if(out.hasArray()) {
+               n = inflater.inflate(out.array(),
+                        out.arrayOffset()+out.position(),out.remaining());
+               out.position(out.position()+n);
+            } else {
+               n = inflater.inflate(z.out,0,Math.min(CHUNK,out.remaining()));
+               out.put(z.out,0,n);
+            }
+            if(n == 0 && inflater.needsDictionary()) break;
+         }
+      } catch(DataFormatException ex) {
+         if(pool != null) pool.release(out);
+         throw new ZipException("Malformed jar entry: "+name+" ("+
+                  ex.getMessage()+")");
+      } finally {
+         inflater.reset();
+         inflaters.offer(z);
+      }
+      if(out.hasRemaining()) {
+         if(pool != null) pool.release(out);
+         throw new ZipException("Truncated jar entry: "+name);
+      }
+      out.flip();
+      return out;
+   }
+
+   /**
+    * Let go of the mapped file. The buffers handed out by
+    * {@link #get(String, BufferPool)} stay usable until they're garbage
+    * collected, which is also when the file is actually unmapped.
+    */
+   @Override
+   public void close() {
+      map = null;
+      entries.clear();
+   }
+
+   private static final class Inflating {
+      final Inflater inflater = new Inflater(true);
+      final byte[] in = new byte[CHUNK];
+      final byte[] out = new byte[CHUNK];
+   }
+
+   private static final class Entry {
+      final int method;
+      final long crc;
+      final long compressed;
+      final long size;
+      final long local;
+
+      Entry(int method, long crc, long compressed, long size, long local) {
+         this.method = method;
+         this.crc = crc;
+         this.compressed = compressed;
+         this.size = size;
+         this.local = local;
+      }
+   }
+}
@@ -0,0 +1,257 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import uk.co.slashingedge.utils.CsvWriter;
+
+/**
+ * <p>A smaller version of the class graph, with the classes grouped by
+ * package (the first so many levels of it) or by the jar they came from:
+ * the same as nodes.txt & edges.txt, but with a node for each group, and
+ * an edge between two groups wherever a class in one refers to a class in
+ * the other, weighted by the sum of the weights of those references.</p>
+ *
+ * <p>It's filled in while nodes.txt and edges.txt are written, one row at
+ * a time, so the graph isn't gone through again. The numbers of each group
+ * are the sums of the numbers of its classes, plus the number of classes
+ * and the references between classes in the group (which don't get an
+ * edge of their own).</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class PackageRollup implements Closeable {
+   /**
+    * Name of the group of classes which aren't in a package.
+    */
+   public static final String DEFAULT_PACKAGE = "(default package)";
+   /**
+    * Name of the group of classes whose jar couldn't be found.
+    */
+   public static final String UNKNOWN = "(unknown)";
+
+   private final int depth;
+   private final ClassPath classPath;
+   private final ArrayList<Group> groups = new ArrayList<Group>();
+   private final HashMap<String, Group> byName = new HashMap<String, Group>();
+   // Group of each class seen so far, as most classes are in many edges
+   private final HashMap<String, Group> byClass =
+            new HashMap<String, Group>();
+   // Weights of the edges between groups, keyed by both groups' indexes
+   private final LinkedHashMap<Long, long[]> weights =
+            new LinkedHashMap<Long, long[]>();
+   private int classes = 0;
+
+   /**
+    * Group classes by package.
+    * @param depth Number of levels of package to group by (so 2 puts
+    * org.apache.commons.io.FileUtils in org.apache). Must be at least 1.
+    */
+   public PackageRollup(int depth) {
+      if(depth < 1) {
+         throw new IllegalArgumentException("Package depth must be at " +
+                  "least 1: "+depth);
+      }
+      this.depth = depth;
+      this.classPath = null;
+   }
+
+   /**
+    * Group classes by the jar (or directory) they're in. Classes which
+    * aren't on the class path are looked for on the class path this is
+    * running with, and the JDK's classes are grouped by module.
+    * @param classPath Jars and directories, separated by
+    * {@link File#pathSeparator}, or null to only look on the class path
+    * this is running with
+    */
+   public PackageRollup(String classPath) {
+      this.depth = 0;
+      this.classPath = classPath == null ? null : new ClassPath(classPath);
+   }
+
+   /**
+    * @param by "jar" to group classes by jar, or else the number of levels
+    * of package to group them by
+    * @param classPath Where to find the jars, see
+    * {@link #PackageRollup(String)}
+    * @return The rollup
+    * @throws IllegalArgumentException If it's neither
+    */
+   public static PackageRollup forOption(String by, String classPath) {
+      if(by.equalsIgnoreCase("jar")) return new PackageRollup(classPath);
+      return new PackageRollup(Integer.parseInt(by));
+   }
+
+   /**
+    * Add a class' row of nodes.txt to its group.
+    * @param cls Name of the class
+    * @param columns The numeric columns of its row (see
+    * {@link Main#columns(ClassMetrics, int, int)})
+    * @throws IOException If its jar couldn't be read
+    */
+   public void addNode(String cls, int[] columns) throws IOException {
+      Group g = group(cls);
+      if(g.sums == null) g.sums = new long[columns.length];
+      for(int i=0; i<columns.length; i++) g.sums[i] += columns[i];
+      g.classes++;
+      classes++;
+   }
+
+   /**
+    * Add a row of edges.txt to the edge between the classes' groups.
+    * @param source Name of the class in the Source column
+    * @param target Name of the class in the Target column
+    * @param weight Weight of the edge
+    * @throws IOException If a jar couldn't be read
+    */
+   public void addEdge(String source, String target, int weight)
+            throws IOException {
+      Group from = group(source);
+      Group to = group(target);
+      if(from == to) {
+         from.internal += weight;
+         return;
+      }
+      Long key = (long) from.index << 32 | to.index;
+      long[] w = weights.get(key);
+      if(w == null) {
+         w = new long[1];
+         weights.put(key,w);
+      }
+      w[0] += weight;
+   }
+
+   /**
+    * Write out the groups and the edges between them, in the order they
+    * were first seen. The nodes have the same columns as nodes.txt (without
+    * the class and the component), plus "classes" and "internal
+    * references".
+    * @param nodes Where to write the groups
+    * @param edges Where to write the edges
+    * @throws IOException If they couldn't be written
+    */
+   public void write(CsvWriter nodes, CsvWriter edges) throws IOException {
+      nodes.field("Id").field("Label").field("classes");
+      for(int i=3; i<Main.HEADER.length; i++) nodes.field(Main.HEADER[i]);
+      nodes.field("internal references").endRow();
+      for(Group g : groups) {
+         nodes.name(g.name).field(g.label()).field(g.classes);
+         for(int i=3; i<Main.HEADER.length; i++) {
+            nodes.field(g.sums == null ? 0 : g.sums[i-3]);
+         }
+         nodes.field(g.internal).endRow();
+      }
+      edges.row("Source","Target","Weight");
+      for(Entry<Long, long[]> e : weights.entrySet()) {
+         long key = e.getKey();
+         edges.name(groups.get((int) (key >>> 32)).name)
+                  .name(groups.get((int) key).name).field(e.getValue()[0])
+                  .endRow();
+      }
+   }
+
+   /**
+    * Close the class path the jars were looked up on, if there was one.
+    */
+   @Override
+   public void close() throws IOException {
+      if(classPath != null) classPath.close();
+   }
+
+   @Override
+   public String toString() {
+      return groups.size()+" groups of "+classes+" classes, "+
+               weights.size()+" edges between them";
+   }
+
+   private Group group(String cls) throws IOException {
+      Group g = byClass.get(cls);
+      if(g != null) return g;
+      String name = depth > 0 ? pkg(cls) : jar(cls);
+      g = byName.get(name);
+      if(g == null) {
+         g = new Group(name,groups.size());
+         groups.add(g);
+         byName.put(name,g);
+      }
+      byClass.put(cls,g);
+      return g;
+   }
+
+   /*
+    * The first depth levels of the class' package.
+    */
+   private String pkg(String cls) {
+      int end = cls.lastIndexOf('.');
+      if(end == -1) return DEFAULT_PACKAGE;
+      int dot = -1;
+      for(int i=0; i<depth; i++) {
+         dot = cls.indexOf('.',dot+1);
+         if(dot == -1 || dot > end) return cls.substring(0,end);
+      }
+      return cls.substring(0,dot);
+   }
+
+   /*
+    * The jar or directory the class is in: on the class path if it's there,
+    * or else wherever the JVM this is running in would load it from.
+    */
+   private String jar(String cls) throws IOException {
+      if(classPath != null) {
+         File entry = classPath.getEntry(cls);
+         if(entry != null) return entry.getPath();
+      }
+      URL url = ClassLoader.getSystemResource(
+               cls.replace('.','/')+".class");
+      if(url == null) return UNKNOWN;
+      String path = url.getPath();
+      if(url.getProtocol().equals("jar")) {
+         // file:/some/where/lib.jar!/the/Class.class
+         int bang = path.indexOf("!/");
+         if(bang != -1) path = path.substring(0,bang);
+         if(path.startsWith("file:")) path = path.substring(5);
+         return path;
+      } else if(url.getProtocol().equals("jrt")) {
+         // /java.base/java/lang/Object.class
+         int slash = path.indexOf('/',1);
+         return slash == -1 ? path : path.substring(1,slash);
+      } else if(url.getProtocol().equals("file")) {
+         // The directory, without the slash before the package
+         int end = path.length()-cls.length()-".class".length()-1;
+         return end > 0 ? path.substring(0,end) : path;
+      }
+      return url.toString();
+   }
+
+   private static final class Group {
+      final String name;
+      final int index;
+      long[] sums = null;
+      int classes = 0;
+      long internal = 0;
+
+      Group(String name, int index) {
+         this.name = name;
+         this.index = index;
+      }
+
+      /*
+       * Jars are labelled with just their file name.
+       */
+      String label() {
+         int slash = Math.max(name.lastIndexOf('/'),
+                  name.lastIndexOf(File.separatorChar));
+         if(slash == -1 || slash == name.length()-1) return name;
+         return name.substring(slash+1);
+      }
+   }
+}
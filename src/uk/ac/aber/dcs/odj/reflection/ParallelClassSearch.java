@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Searches the class graph breadth-first from a class (the same thing as
+ * {@link ClassInspector#getClosure(int)}) using several threads.</p>
+ *
+ * <p>The search goes one depth level at a time: every class found at the
+ * current level is inspected in parallel on a {@link ForkJoinPool}, and the
+ * classes they refer to which haven't been seen before make up the next
+ * level. So each class is inspected once, at the shallowest depth it can be
+ * reached at, no matter which thread gets to it first.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+class ParallelClassSearch {
+   /*
+    * Number of classes each task inspects itself, rather than splitting the
+    * work any further.
+    */
+   private static final int THRESHOLD = 8;
+
+   private final ForkJoinPool pool;
+   private final Set<Class> found =
+            Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
+
+   /**
+    * @param pool The pool to run the search on
+    */
+   ParallelClassSearch(ForkJoinPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * @param source The class to start from
+    * @param max Depth of search: -1 for infinite, >= 0 for depth-limited
+    * @return All the classes found, with their depths
+    */
+   ClassClosure<Class> search(Class source, int max) {
+      ClassClosure<Class> closure = new ClassClosure<Class>(source,max);
+      List<Class> level = new ArrayList<Class>();
+      level.add(source);
+      found.add(source);
+      for(int depth=1; !level.isEmpty(); depth++) {
+         ConcurrentLinkedQueue<Class> next = new ConcurrentLinkedQueue<Class>();
+         pool.invoke(new Inspect(level,0,level.size(),next));
+         level = new ArrayList<Class>();
+         for(Class c : next) {
+            closure.add(c,depth);
+            if(closure.expand(depth)) level.add(c);
+         }
+      }
+      return closure;
+   }
+
+   /*
+    * Inspects classes [start,end) of one level of the search.
+    */
+   private final class Inspect extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final List<Class> level;
+      private final int start;
+      private final int end;
+      private final ConcurrentLinkedQueue<Class> next;
+
+      Inspect(List<Class> level, int start, int end,
+               ConcurrentLinkedQueue<Class> next) {
+         this.level = level;
+         this.start = start;
+         this.end = end;
+         this.next = next;
+      }
+
+      @Override
+      protected void compute() {
+         if(end-start > THRESHOLD) {
+            int mid = (start+end) >>> 1;
+            invokeAll(new Inspect(level,start,mid,next),
+                     new Inspect(level,mid,end,next));
+            return;
+         }
+         for(int i=start; i<end; i++) {
+            for(Class c : ClassInspector.getReferredClasses(level.get(i))) {
+               // Set.add() is atomic, so only one thread queues each class
+               if(found.add(c)) next.add(c);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,524 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.Arrays;
+
+/**
+ * <p>Answers "which classes can this class reach?" for every class in a
+ * {@link ClassGraph} at once, without searching the graph each time. The
+ * graph is first collapsed into its {@link StronglyConnectedComponents}
+ * (every class in a component reaches exactly the same classes), and then
+ * the set of components each component reaches is worked out once, in the
+ * order the components were found in, so that each set is just the
+ * component itself plus the sets of the components it refers to.</p>
+ *
+ * <p>Each set is compressed, in the same way as the containers of a Roaring
+ * bitmap: it's kept as whichever is smallest out of a sorted list of
+ * component numbers, a list of runs of consecutive numbers, or a bitmap
+ * (trimmed down to the words between its first and last number). Sets in
+ * class graphs tend to be either tiny (leaf classes) or huge (anything which
+ * reaches java.lang.Object reaches a good part of the JDK), and since a
+ * component only reaches components numbered below it, the huge ones are
+ * mostly long runs. Sets made of a few runs are combined run by run, so
+ * they cost as much as their runs rather than the size of the graph; only
+ * fragmented ones are ORed together a word at a time. The number of classes
+ * each component reaches is counted up front as well.</p>
+ *
+ * <p>An index is built for one {@link ClassGraph.Adjacency}, and never
+ * changes: see {@link ClassGraph.Adjacency#reachability()}. It's only right
+ * for classes whose references have all been found, and so have all the
+ * classes they reach (e.g. after a search which wasn't limited in depth).
+ * Those are the ones {@link #isComplete(int)} says yes to; anything else
+ * has to be searched for in the usual way.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class ReachabilityIndex {
+   private final StronglyConnectedComponents components;
+   private final boolean[] complete;
+   private final int[] counts;
+   private final ComponentSet[] reach;
+
+   /**
+    * @param graph What each class refers to
+    * @param components The graph's components
+    * @param explored Whether all the references each class makes are in
+    * the graph
+    */
+   ReachabilityIndex(ClassGraph.Adjacency graph,
+            StronglyConnectedComponents components, boolean[] explored) {
+      this.components = components;
+      int n = components.getCount();
+      complete = new boolean[n];
+      counts = new int[n];
+      reach = new ComponentSet[n];
+
+      // Which component last found each component among its references
+      int[] seen = new int[n];
+      int[] referred = new int[16];
+      ComponentSet[] taken = new ComponentSet[16];
+      // Runs to be combined, as (start << 32 | end) so sorting orders them
+      long[] runs = new long[16];
+      long[] scratch = new long[(n+63) >>> 6];
+      // Components with more than one class in them
+      long[] shared = new long[scratch.length];
+      for(int c=0; c<n; c++) {
+         if(components.getSize(c) > 1) shared[c >>> 6] |= 1L << c;
+      }
+      for(int c=0; c<n; c++) {
+         boolean done = true;
+         int k = 0;
+         for(int i=components.start(c); i<components.end(c); i++) {
+            int v = components.member(i);
+            if(!explored[v]) done = false;
+            for(int e=graph.start(v); e<graph.end(v); e++) {
+               int d = components.getComponent(graph.target(e));
+               // Components are numbered so that d < c (or d is c itself)
+               if(d == c || seen[d] == c+1) continue;
+               seen[d] = c+1;
+               if(k == referred.length) {
+                  referred = Arrays.copyOf(referred,k*2);
+                  taken = Arrays.copyOf(taken,k*2);
+               }
+               referred[k++] = d;
+            }
+         }
+
+         /*
+          * Every set is closed (it contains the sets of everything in it),
+          * so anything in the biggest set taken so far adds nothing to it.
+          * Going from the highest number down takes the sets most likely to
+          * contain the others first.
+          */
+         Arrays.sort(referred,0,k);
+         int t = 0;
+         int runCount = 1;
+         int lo = c >>> 6;
+         int hi = lo;
+         ComponentSet biggest = null;
+         for(int j=k-1; j>=0; j--) {
+            ComponentSet s = reach[referred[j]];
+            done &= complete[referred[j]];
+            if(biggest != null && biggest.contains(referred[j])) continue;
+            if(biggest == null || s.size() > biggest.size()) biggest = s;
+            taken[t++] = s;
+            runCount += s.runCount();
+            lo = Math.min(lo,s.firstWord());
+            hi = Math.max(hi,s.lastWord());
+         }
+
+         /*
+          * A few runs are quicker to sort than a long stretch of bitmap is
+          * to go through; lots of them (i.e. the sets are fragmented) are
+          * quicker to OR together.
+          */
+         if((long) runCount*16 < hi-lo+1) {
+            if(runCount > runs.length) {
+               runs = new long[Math.max(runs.length*2,runCount)];
+            }
+            int r = 0;
+            runs[r++] = run(c,c+1);
+            for(int j=0; j<t; j++) r = taken[j].runs(runs,r);
+            reach[c] = ComponentSet.union(runs,r,components);
+         } else {
+            // Here it's quick to check whether a set's already been added
+            scratch[c >>> 6] |= 1L << c;
+            for(int j=0; j<t; j++) {
+               int d = taken[j].last();
+               if((scratch[d >>> 6] & (1L << d)) == 0) taken[j].or(scratch);
+            }
+            if(runCount > runs.length) {
+               runs = new long[Math.max(runs.length*2,runCount)];
+            }
+            reach[c] = ComponentSet.of(scratch,lo,hi,runs,shared,components);
+            Arrays.fill(scratch,lo,hi+1,0L);
+         }
+         Arrays.fill(taken,0,t,null);
+         complete[c] = done;
+         counts[c] = reach[c].classes();
+      }
+   }
+
+   private static long run(int start, int end) {
+      return (long) start << 32 | end;
+   }
+
+   /**
+    * @return The components the classes were grouped into
+    */
+   public StronglyConnectedComponents getComponents() {
+      return components;
+   }
+
+   /**
+    * @return Number of classes covered
+    */
+   public int size() {
+      return components.size();
+   }
+
+   /**
+    * @param v Id of a class
+    * @return Whether the index knows everything the class reaches
+    */
+   public boolean isComplete(int v) {
+      return v >= 0 && v < size() && complete[components.getComponent(v)];
+   }
+
+   /**
+    * @param v Id of a class, which {@link #isComplete(int)}
+    * @return Number of classes the class reaches, including itself
+    */
+   public int count(int v) {
+      return counts[components.getComponent(v)];
+   }
+
+   /**
+    * @param v Id of a class, which {@link #isComplete(int)}
+    * @param w Id of another class
+    * @return Whether v refers to w, directly or not
+    */
+   public boolean reaches(int v, int w) {
+      if(w < 0 || w >= size()) return false;
+      return reach[components.getComponent(v)]
+               .contains(components.getComponent(w));
+   }
+
+   /**
+    * @param v Id of a class, which {@link #isComplete(int)}
+    * @return Ids of every class the class reaches, including itself
+    */
+   public int[] reachable(int v) {
+      ComponentSet s = reach[components.getComponent(v)];
+      long[] runs = new long[s.runCount()];
+      s.runs(runs,0);
+      int[] found = new int[count(v)];
+      int n = 0;
+      for(long run : runs) {
+         int end = components.start((int) run);
+         for(int i=components.start((int) (run >>> 32)); i<end; i++) {
+            found[n++] = components.member(i);
+         }
+      }
+      return found;
+   }
+
+   /**
+    * @return Bytes used by the reachable sets
+    */
+   public long getMemoryUsed() {
+      long bytes = 0;
+      for(ComponentSet s : reach) bytes += s.bytes();
+      return bytes;
+   }
+
+   @Override
+   public String toString() {
+      int done = 0;
+      for(boolean b : complete) if(b) done++;
+      int[] kinds = new int[3];
+      for(ComponentSet s : reach) kinds[s.kind()]++;
+      return size()+" classes in "+components.getCount()+" components ("+
+               done+" complete), "+(getMemoryUsed() >> 10)+"KB of sets ("+
+               kinds[0]+" lists, "+kinds[1]+" runs, "+kinds[2]+" bitmaps)";
+   }
+
+   /*
+    * A set of component numbers, kept in one of three ways: a sorted array
+    * of them (ids), an array of runs of them (runs, as start & end pairs,
+    * end not included), or a bitmap starting at word 'offset' (words).
+    */
+   private static final class ComponentSet {
+      private final int[] ids;
+      private final int[] runs;
+      private final long[] words;
+      private final int offset;
+      private final int size;
+      private final int runCount;
+      private final int classes;
+
+      private ComponentSet(int[] ids, int[] runs, long[] words, int offset,
+               int size, int runCount, int classes) {
+         this.ids = ids;
+         this.runs = runs;
+         this.words = words;
+         this.offset = offset;
+         this.size = size;
+         this.runCount = runCount;
+         this.classes = classes;
+      }
+
+      /*
+       * Merge runs (sorted in place first), which may overlap.
+       */
+      static ComponentSet union(long[] pending, int n,
+               StronglyConnectedComponents scc) {
+         Arrays.sort(pending,0,n);
+         int[] merged = new int[n*2];
+         int r = 0;
+         int size = 0;
+         for(int i=0; i<n; i++) {
+            int start = (int) (pending[i] >>> 32);
+            int end = (int) pending[i];
+            if(r > 0 && start <= merged[r-1]) {
+               if(end > merged[r-1]) {
+                  size += end-merged[r-1];
+                  merged[r-1] = end;
+               }
+               continue;
+            }
+            merged[r++] = start;
+            merged[r++] = end;
+            size += end-start;
+         }
+         int classes = 0;
+         for(int i=0; i<r; i+=2) {
+            classes += scc.start(merged[i+1])-scc.start(merged[i]);
+         }
+         int lo = merged[0] >>> 6;
+         int hi = (merged[r-1]-1) >>> 6;
+         switch(smallest(size,r/2,hi-lo+1)) {
+         case 0:
+            int[] ids = new int[size];
+            int k = 0;
+            for(int i=0; i<r; i+=2) {
+               for(int c=merged[i]; c<merged[i+1]; c++) ids[k++] = c;
+            }
+            return new ComponentSet(ids,null,null,0,size,r/2,classes);
+         case 1:
+            return new ComponentSet(null,Arrays.copyOf(merged,r),null,0,
+                     size,r/2,classes);
+         default:
+            long[] words = new long[hi-lo+1];
+            for(int i=0; i<r; i+=2) {
+               setRange(words,merged[i]-(lo << 6),merged[i+1]-(lo << 6));
+            }
+            return new ComponentSet(null,null,words,lo,size,r/2,classes);
+         }
+      }
+
+      /*
+       * The set of bits in words lo to hi of a bitmap (which has nothing
+       * set outside of them). 'runs' must have room for all of its runs,
+       * and 'shared' is a bitmap of the components of more than one class.
+       */
+      static ComponentSet of(long[] scratch, int lo, int hi, long[] runs,
+               long[] shared, StronglyConnectedComponents scc) {
+         while(scratch[lo] == 0) lo++;
+         while(scratch[hi] == 0) hi--;
+         int size = 0;
+         int runCount = 0;
+         // Most components are one class, so only the rest need looking up
+         int classes = 0;
+         long carry = 0;
+         for(int w=lo; w<=hi; w++) {
+            long bits = scratch[w];
+            size += Long.bitCount(bits);
+            // A run starts at every set bit whose lower neighbour isn't set
+            runCount += Long.bitCount(bits & ~(bits << 1 | carry));
+            carry = bits >>> 63;
+            long big = bits & shared[w];
+            while(big != 0) {
+               classes += scc.getSize((w << 6)+
+                        Long.numberOfTrailingZeros(big))-1;
+               big &= big-1;
+            }
+         }
+         classes += size;
+         switch(smallest(size,runCount,hi-lo+1)) {
+         case 0:
+            int[] ids = new int[size];
+            int n = 0;
+            for(int w=lo; w<=hi; w++) {
+               long bits = scratch[w];
+               while(bits != 0) {
+                  ids[n++] = (w << 6)+Long.numberOfTrailingZeros(bits);
+                  bits &= bits-1;
+               }
+            }
+            return new ComponentSet(ids,null,null,0,size,runCount,classes);
+         case 1:
+            runs(scratch,lo,hi-lo+1,lo,runs,0);
+            int[] pairs = new int[runCount*2];
+            for(int i=0; i<runCount; i++) {
+               pairs[i*2] = (int) (runs[i] >>> 32);
+               pairs[i*2+1] = (int) runs[i];
+            }
+            return new ComponentSet(null,pairs,null,0,size,runCount,classes);
+         default:
+            return new ComponentSet(null,null,
+                     Arrays.copyOfRange(scratch,lo,hi+1),lo,size,runCount,
+                     classes);
+         }
+      }
+
+      /*
+       * Which form takes the fewest bytes: 0 for ids, 1 for runs, 2 for a
+       * bitmap of that many words.
+       */
+      private static int smallest(int size, int runCount, int words) {
+         long asIds = size*4L;
+         long asRuns = runCount*8L;
+         long asWords = words*8L;
+         if(asIds <= asRuns && asIds <= asWords) return 0;
+         return asRuns <= asWords ? 1 : 2;
+      }
+
+      /*
+       * Set bits [from,to) of a bitmap.
+       */
+      private static void setRange(long[] words, int from, int to) {
+         if(from >= to) return;
+         int first = from >>> 6;
+         int last = (to-1) >>> 6;
+         if(first == last) {
+            words[first] |= (-1L << from) & (-1L >>> -to);
+            return;
+         }
+         words[first] |= -1L << from;
+         for(int w=first+1; w<last; w++) words[w] = -1L;
+         words[last] |= -1L >>> -to;
+      }
+
+      /*
+       * Number of components in the set.
+       */
+      int size() {
+         return size;
+      }
+
+      /*
+       * Number of runs of consecutive components in the set.
+       */
+      int runCount() {
+         return runCount;
+      }
+
+      int firstWord() {
+         if(ids != null) return ids[0] >>> 6;
+         if(runs != null) return runs[0] >>> 6;
+         return offset;
+      }
+
+      int lastWord() {
+         if(ids != null) return ids[ids.length-1] >>> 6;
+         if(runs != null) return (runs[runs.length-1]-1) >>> 6;
+         return offset+words.length-1;
+      }
+
+      boolean contains(int c) {
+         if(ids != null) return Arrays.binarySearch(ids,c) >= 0;
+         if(runs != null) {
+            // The last run starting at or before c
+            int lo = 0;
+            int hi = runCount-1;
+            while(lo <= hi) {
+               int mid = (lo+hi) >>> 1;
+               if(runs[mid*2] <= c) {
+                  lo = mid+1;
+               } else {
+                  hi = mid-1;
+               }
+            }
+            return hi >= 0 && c < runs[hi*2+1];
+         }
+         int w = (c >>> 6)-offset;
+         return w >= 0 && w < words.length && (words[w] & (1L << c)) != 0;
+      }
+
+      /*
+       * Set the set's bits in a bitmap which covers every component.
+       */
+      void or(long[] scratch) {
+         if(ids != null) {
+            for(int c : ids) scratch[c >>> 6] |= 1L << c;
+         } else if(runs != null) {
+            for(int i=0; i<runs.length; i+=2) {
+               setRange(scratch,runs[i],runs[i+1]);
+            }
+         } else {
+            for(int w=0; w<words.length; w++) scratch[offset+w] |= words[w];
+         }
+      }
+
+      /*
+       * Write the set's runs into 'into' from index 'at' (which must have
+       * room for runCount() of them), returning the index after them.
+       */
+      int runs(long[] into, int at) {
+         if(runs != null) {
+            for(int i=0; i<runs.length; i+=2) {
+               into[at++] = run(runs[i],runs[i+1]);
+            }
+         } else if(ids != null) {
+            for(int i=0; i<ids.length; i++) {
+               int start = ids[i];
+               while(i+1 < ids.length && ids[i+1] == ids[i]+1) i++;
+               into[at++] = run(start,ids[i]+1);
+            }
+         } else {
+            at = runs(words,0,words.length,offset,into,at);
+         }
+         return at;
+      }
+
+      /*
+       * Write the runs of set bits in words [from,from+length) of a bitmap
+       * into 'into' from index 'at', returning the index after them. Word
+       * 'from' holds components (base*64) to (base*64+63).
+       */
+      private static int runs(long[] bits, int from, int length, int base,
+               long[] into, int at) {
+         // Skip to the next set bit, then to the next clear one
+         int start = -1;
+         for(int w=0; w<length; w++) {
+            long word = bits[from+w];
+            int b = 0;
+            while(b < 64) {
+               long next = (start == -1 ? word : ~word) & (-1L << b);
+               if(next == 0) break;
+               b = Long.numberOfTrailingZeros(next);
+               if(start == -1) {
+                  start = ((base+w) << 6)+b;
+               } else {
+                  into[at++] = run(start,((base+w) << 6)+b);
+                  start = -1;
+               }
+            }
+         }
+         if(start != -1) into[at++] = run(start,(base+length) << 6);
+         return at;
+      }
+
+      /*
+       * Highest component number in the set.
+       */
+      int last() {
+         if(ids != null) return ids[ids.length-1];
+         if(runs != null) return runs[runs.length-1]-1;
+         return ((offset+words.length-1) << 6)+63-
+                  Long.numberOfLeadingZeros(words[words.length-1]);
+      }
+
+      /*
+       * Number of classes in the components in the set.
+       */
+      int classes() {
+         return classes;
+      }
+
+      /*
+       * 0 for a list of ids, 1 for runs, 2 for a bitmap.
+       */
+      int kind() {
+         return ids != null ? 0 : runs != null ? 1 : 2;
+      }
+
+      long bytes() {
+         return ids != null ? ids.length*4L : runs != null ? runs.length*4L
+                  : words.length*8L;
+      }
+   }
+}
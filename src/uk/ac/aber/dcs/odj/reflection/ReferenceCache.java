@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Cache of the results of inspecting classes (the classes each one refers
+ * to, and its {@link ClassMetrics}), shared by every
+ * {@link ClassInspector}. Each class is only reflected on once (until it's
+ * evicted), no matter how many inspectors are created for it or how many
+ * paths through the class graph lead to it.</p>
+ *
+ * <p>The cache holds at most a fixed number of classes: once it's full the
+ * least recently used ones are thrown away. It's split into segments, each
+ * with its own lock, so threads inspecting different classes rarely have to
+ * wait for each other. Reflection happens outside of the locks; if two
+ * threads miss on the same class at once, both inspect it and one result
+ * wins.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public class ReferenceCache {
+   public static final int DEFAULT_CAPACITY = 1 << 16;
+   private static final int SEGMENTS = 16;
+
+   private final Segment[] segments = new Segment[SEGMENTS];
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+   /**
+    * @param capacity Maximum number of classes to keep
+    */
+   public ReferenceCache(int capacity) {
+      int perSegment = Math.max(1,(capacity+SEGMENTS-1)/SEGMENTS);
+      for(int i=0; i<SEGMENTS; i++) segments[i] = new Segment(perSegment);
+   }
+
+   /**
+    * Get the cached details of a class, inspecting it if it isn't cached.
+    * @param cls The class to look up
+    * @return The cached details of the class
+    */
+   public Entry get(Class cls) {
+      Segment segment = segments[(cls.hashCode() & 0x7FFFFFFF) % SEGMENTS];
+      Entry entry;
+      synchronized(segment) {
+         entry = segment.get(cls);
+      }
+      if(entry != null) {
+         hits.incrementAndGet();
+         return entry;
+      }
+      misses.incrementAndGet();
+      entry = new Entry(cls);
+      synchronized(segment) {
+         segment.put(cls,entry);
+      }
+      return entry;
+   }
+
+   /**
+    * @return Number of lookups which found the class already cached
+    */
+   public long getHits() {
+      return hits.get();
+   }
+
+   /**
+    * @return Number of lookups which had to inspect the class
+    */
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * @return Number of classes thrown out to make room for others
+    */
+   public long getEvictions() {
+      return evictions.get();
+   }
+
+   /**
+    * @return Number of classes currently cached
+    */
+   public int size() {
+      int size = 0;
+      for(Segment s : segments) {
+         synchronized(s) {
+            size += s.size();
+         }
+      }
+      return size;
+   }
+
+   /**
+    * Throw away everything in the cache. The counters are left alone.
+    */
+   public void clear() {
+      for(Segment s : segments) {
+         synchronized(s) {
+            s.clear();
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      return size()+" classes, "+getHits()+" hits, "+getMisses()+
+               " misses, "+getEvictions()+" evictions";
+   }
+
+   /*
+    * A LinkedHashMap in access order drops its least recently used entry
+    * when told to by removeEldestEntry().
+    */
+   private final class Segment
+            extends LinkedHashMap<Class, ReferenceCache.Entry> {
+      private static final long serialVersionUID = 1L;
+      private final int capacity;
+
+      Segment(int capacity) {
+         super(16,0.75f,true);
+         this.capacity = capacity;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(
+               Map.Entry<Class, ReferenceCache.Entry> eldest) {
+         if(size() > capacity) {
+            evictions.incrementAndGet();
+            return true;
+         }
+         return false;
+      }
+   }
+
+   /**
+    * The results of inspecting one class. Everything is worked out from a
+    * single call each to getDeclaredMethods() & getDeclaredFields(), which
+    * copy their arrays every time they're called.
+    */
+   public static final class Entry {
+      private final Class[] referredClasses;
+      private final ClassMetrics metrics;
+
+      Entry(Class cls) {
+         Stats.Span span = Stats.begin(Stats.Timer.INSPECT,cls.getName());
+         try {
+            Method[] m = cls.getDeclaredMethods();
+            Field[] f = cls.getDeclaredFields();
+            Stats.count(Stats.Counter.REFLECTIVE_CALLS,2);
+            this.referredClasses =
+                     ClassInspector.findReferredClasses(cls,m,f);
+            this.metrics = ClassMetrics.forClass(cls,m,f,referredClasses);
+         } finally {
+            span.end();
+         }
+      }
+
+      /**
+       * @return The classes directly referred to by the class (see
+       * {@link ClassInspector#getReferredClasses()}). Don't modify this
+       * array: it's shared.
+       */
+      public Class[] getReferredClasses() {
+         return referredClasses;
+      }
+
+      /**
+       * @return The class' metrics
+       */
+      public ClassMetrics getMetrics() {
+         return metrics;
+      }
+   }
+}
@@ -0,0 +1,393 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Splits a run across several processes (or machines). Each shard is
+ * given every n'th class of the input, and does all the reading & parsing
+ * a normal run would do for those classes: the searches from them, and the
+ * class files that writing out their rows of nodes.txt would read. What it
+ * found is written to a partial file: the references each class it read
+ * makes (the edges of its part of the graph, in the order they're listed
+ * in the class file), the metrics of its rows of nodes.txt, and the methods
+ * of its classes for output.txt.</p>
+ *
+ * <p>The merge adds the edges from the partial files to one
+ * {@link ClassGraph} (see {@link MergedGraph}), and works out only the
+ * columns which depend on the whole graph: connections, associated classes
+ * and components. Nothing is read from the class path or parsed. The ids
+ * of the classes, and so the order of the rows, and the connections
+ * printed to output.txt before the graph's finished, depend on the order a
+ * single run reads the classes in, so the edges of each class are added
+ * at the point a single run would have read it. The classes a shard reads
+ * depend only on the classes it was given, and a single run reads the same
+ * classes for them, so nodes.txt, edges.txt & co. come out the same byte
+ * for byte.</p>
+ *
+ * <p>Where shards reach the same classes, each of them reads them and
+ * writes them out; the merge only keeps one copy.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class ShardedAnalysis {
+   private static final int MAGIC = 0x4F444A53; // "ODJS"
+   private static final int VERSION = 2;
+
+   private ShardedAnalysis() {
+   }
+
+   /**
+    * Pick out one shard's classes: every n'th one, so each shard gets a
+    * mix of the classes from each jar.
+    * @param classes The whole input
+    * @param shard Which shard, from 0 to shards-1
+    * @param shards Number of shards
+    * @return The shard's classes, in the same order as in the input
+    */
+   public static List<String> select(List<String> classes, int shard,
+            int shards) {
+      List<String> selected = new ArrayList<String>();
+      for(int i=shard; i<classes.size(); i+=shards) {
+         selected.add(classes.get(i));
+      }
+      return selected;
+   }
+
+   /**
+    * Read every class file that a normal run of a list of classes would
+    * read, without printing anything.
+    * @param classes The shard's classes
+    * @param scanner If not null, search from the classes in parallel using
+    * the scanner's threads
+    * @return The classes in the graph once the classes' detailed info has
+    * been read, i.e. the shard's rows of nodes.txt
+    */
+   public static List<String> analyse(List<String> classes,
+            ClassPathScanner scanner) {
+      String[] names = classes.toArray(new String[0]);
+      Main.warmUp(names,true,scanner);
+      // The detailed info printed for each class
+      for(String cls : names) read(cls);
+      // The rows of nodes.txt: every class in the graph by now
+      List<String> rows = new ArrayList<String>(
+               BytecodeInspector.getAllInspectedClasses().keySet());
+      for(String cls : rows) read(cls);
+      return rows;
+   }
+
+   private static void read(String cls) {
+      BytecodeInspector.getMetrics(cls);
+      Main.associated(cls);
+   }
+
+   /**
+    * Write the references of every class read so far to a partial file,
+    * along with the metrics of the shard's rows and the methods of its
+    * classes. Nothing more is read.
+    * @param file The file to write
+    * @param classes The shard's classes
+    * @param rows The shard's rows, from {@link #analyse}
+    * @return Number of classes whose references were written
+    * @throws IOException If the file couldn't be written
+    */
+   public static int writePartial(File file, List<String> classes,
+            List<String> rows) throws IOException {
+      ClassGraph graph = BytecodeInspector.getAllInspectedClasses().getGraph();
+      ClassGraph.Adjacency forward = graph.forward();
+      int written = 0;
+      AnalysisCache.Writer out = new AnalysisCache.Writer(new DataOutputStream(
+               new BufferedOutputStream(new FileOutputStream(file),1 << 16)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(Main.recursion);
+         // Every class that's been read is explored; the ones which
+         // couldn't be found are left out
+         for(int v=0; v<forward.size(); v++) {
+            if(!forward.isExplored(v)) continue;
+            ClassFile cf = BytecodeInspector.getClassFile(graph.getName(v));
+            if(cf == null) continue;
+            out.writeString(cf.getName());
+            out.writeStrings(cf.getReferredClasses());
+            written++;
+         }
+         out.writeString(null);
+         List<ClassMetrics> metrics = new ArrayList<ClassMetrics>();
+         for(String c : rows) {
+            if(BytecodeInspector.getClassFile(c) != null) {
+               metrics.add(BytecodeInspector.getMetrics(c));
+            }
+         }
+         out.writeInt(metrics.size());
+         for(ClassMetrics m : metrics) m.write(out);
+         List<ClassFile> found = new ArrayList<ClassFile>();
+         for(String c : classes) {
+            ClassFile cf = BytecodeInspector.getClassFile(c);
+            if(cf != null) found.add(cf);
+         }
+         out.writeInt(found.size());
+         for(ClassFile cf : found) {
+            Methods m = Methods.of(cf);
+            out.writeString(cf.getName());
+            out.writeStrings(m.names);
+            out.writeInts(m.arguments);
+         }
+      } finally {
+         out.close();
+      }
+      return written;
+   }
+
+   /**
+    * Read the partial files of all the shards of a run.
+    * @param files The partial files, separated by {@link File#pathSeparator}
+    * @param depth Depth of the searches the shards were run with: -1 for
+    * infinite, >= 0 for depth-limited
+    * @return Everything the shards found, with nothing added to its graph
+    * yet
+    * @throws IOException If one of the files couldn't be read, or the shard
+    * that wrote it was run with a different depth
+    */
+   public static MergedGraph merge(String files, int depth)
+            throws IOException {
+      MergedGraph merged = new MergedGraph(depth);
+      for(File f : new ClassPath(files).getEntries()) {
+         if(!f.isFile()) throw new IOException("No such partial file: "+f);
+         readPartial(f,merged);
+      }
+      return merged;
+   }
+
+   private static void readPartial(File f, MergedGraph merged)
+            throws IOException {
+      AnalysisCache.Reader in = new AnalysisCache.Reader(new DataInputStream(
+               new BufferedInputStream(new FileInputStream(f),1 << 16)));
+      try {
+         if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a partial file: "+f);
+         }
+         int made = in.readInt();
+         if(made != merged.depth) {
+            throw new IOException(f+" was written with recursion depth "+
+                     made+", not "+merged.depth);
+         }
+         for(String name; (name = in.readString()) != null; ) {
+            merged.references.put(name,in.readStrings());
+         }
+         for(int i=in.readInt(); i>0; i--) {
+            ClassMetrics m = ClassMetrics.read(in);
+            merged.metrics.put(m.getName(),m);
+         }
+         for(int i=in.readInt(); i>0; i--) {
+            String name = in.readString();
+            merged.methods.put(name,new Methods(in.readStrings(),
+                     in.readInts()));
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * <p>The graph of a merged run, built up from the references the shards
+    * read, in the same order as {@link BytecodeInspector} builds it up from
+    * the class files in a single run: {@link #warmUp(String[])} goes
+    * through the searches from each class that was asked for, and then the
+    * metrics & associated classes of each class are looked up the same way
+    * as in a single run. "Reading" a class adds the references it makes to
+    * the graph the first time, and does nothing after that.</p>
+    *
+    * <p>The searches only follow the references in the graph, and the
+    * metrics & methods are the ones the shards worked out. Classes which
+    * aren't in any of the partial files are treated as not being on the
+    * class path.</p>
+    */
+   public static final class MergedGraph implements Main.NameGraph {
+      private final int depth;
+      private final ClassNameMap map = new ClassNameMap();
+      private final HashMap<String, String[]> references =
+               new HashMap<String, String[]>();
+      private final HashMap<String, ClassMetrics> metrics =
+               new HashMap<String, ClassMetrics>();
+      private final HashMap<String, Methods> methods =
+               new HashMap<String, Methods>();
+      private final HashSet<String> read = new HashSet<String>();
+      // Same as the warm-up's counts in Main
+      private final HashMap<String, Integer> associated =
+               new HashMap<String, Integer>();
+
+      private MergedGraph(int depth) {
+         this.depth = depth;
+      }
+
+      /**
+       * Search from each class, the same as {@link Main}'s warm-up does.
+       * @param classes Names of the classes that were asked for
+       */
+      public void warmUp(String[] classes) {
+         Stats.Span span = Stats.begin(Stats.Phase.WARM_UP);
+         for(String cls : classes) {
+            if(read(cls) == null) continue;
+            int n = search(cls).size();
+            if(depth != -1) associated.put(cls,n);
+         }
+         span.end();
+      }
+
+      /*
+       * Same as BytecodeInspector.getClassFile(), but the references come
+       * from the partial files. Returns null if the class can't be found.
+       */
+      private String[] read(String cls) {
+         String[] to = references.get(cls);
+         if(!read.add(cls)) return to;
+         if(to == null) {
+            map.setExplored(cls);
+         } else {
+            map.addAll(Arrays.asList(to),cls);
+         }
+         return to;
+      }
+
+      /*
+       * Same as BytecodeInspector.getClosure() and getAssociatedClasses().
+       */
+      private List<String> search(String cls) {
+         ClassClosure<String> found = new ClassClosure<String>(cls,depth);
+         ArrayDeque<String> queue = new ArrayDeque<String>();
+         queue.add(cls);
+         while(!queue.isEmpty()) {
+            String c = queue.poll();
+            int d = found.getDepth(c)+1;
+            String[] to = read(c);
+            for(String r : to == null ? new String[] { c } : to) {
+               if(found.add(r,d) && found.expand(d)) queue.add(r);
+            }
+         }
+         List<String> classes = found.getClasses(depth);
+         map.associateAll(classes,cls);
+         return classes;
+      }
+
+      /**
+       * @return The graph, as far as it's been built
+       */
+      @Override
+      public ClassNameMap getAllInspectedClasses() {
+         return map;
+      }
+
+      /**
+       * Reads the class, and the classes it refers to, the same as
+       * {@link BytecodeInspector#getMetrics(String)}.
+       * @param cls Name of a class
+       * @return Its metrics, as the shard which read it worked them out
+       */
+      @Override
+      public ClassMetrics getMetrics(String cls) {
+         String[] to = read(cls);
+         if(to == null) return ClassMetrics.unknown(cls);
+         for(String c : to) read(c);
+         ClassMetrics m = metrics.get(cls);
+         return m != null ? m : ClassMetrics.unknown(cls);
+      }
+
+      /**
+       * Same as {@link Main#associated(String)}.
+       * @param cls Name of a class
+       * @return Number of classes associated with it
+       */
+      @Override
+      public int getAssociated(String cls) {
+         Integer n = associated.get(cls);
+         if(n != null) return n;
+         if(read(cls) == null) return 0;
+         if(depth == -1) {
+            int reached = map.associateReachable(cls);
+            if(reached != -1) return reached;
+         }
+         return search(cls).size();
+      }
+
+      /**
+       * Reads the class, the same as making a {@link BytecodeInspector}
+       * for it.
+       * @param cls Name of a class that was asked for
+       * @return Its methods, or null if it couldn't be found
+       */
+      public Methods getMethods(String cls) {
+         return read(cls) == null ? null : methods.get(cls);
+      }
+   }
+
+   /**
+    * The methods of a class, and how many arguments each one takes, as
+    * they're listed in output.txt.
+    */
+   public static final class Methods {
+      private final String[] names;
+      private final int[] arguments;
+
+      /**
+       * @param names Names of the methods, in order
+       * @param arguments Number of arguments of each one
+       */
+      public Methods(String[] names, int[] arguments) {
+         this.names = names;
+         this.arguments = arguments;
+      }
+
+      /**
+       * @param cf A parsed class file
+       * @return The methods declared in it
+       */
+      public static Methods of(ClassFile cf) {
+         String[] names = cf.getMethodNames();
+         int[] arguments = new int[names.length];
+         for(int i=0; i<names.length; i++) {
+            arguments[i] = cf.getNumberOfMethodArgs(i);
+         }
+         return new Methods(names,arguments);
+      }
+
+      /**
+       * @return Number of methods
+       */
+      public int size() {
+         return names.length;
+      }
+
+      /**
+       * @param i Index of a method
+       * @return Its name
+       */
+      public String getName(int i) {
+         return names[i];
+      }
+
+      /**
+       * @param i Index of a method
+       * @return Number of arguments it takes
+       */
+      public int getNumberOfArgs(int i) {
+         return arguments[i];
+      }
+   }
+}
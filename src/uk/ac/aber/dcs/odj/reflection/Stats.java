@@ -0,0 +1,321 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Where the time goes in a run: how long each phase of {@link Main}
+ * took, counts of the expensive things done along the way (classes loaded,
+ * reflective calls, edges added, bytes written...), and histograms of how
+ * long each class took to inspect and search from. {@link #report(
+ * PrintStream)} prints the lot at the end of a run (on stderr, so tools
+ * reading a query's answer from stdout don't get it too).</p>
+ *
+ * <p>Phases and class inspections are also sent to Java Flight Recorder as
+ * events (in the "Class Analysis" category) when it's recording, e.g. with
+ * -XX:StartFlightRecording, so they can be lined up with GC pauses, class
+ * loading and so on in JDK Mission Control. Until Flight Recorder's been
+ * started no events are made at all: making the first one sets up parts of
+ * the JDK's reflection (e.g. initialising jdk.internal.reflect.ConstantPool,
+ * which hides its field once it's initialised), which would change what's
+ * found when the JDK's own classes are inspected.</p>
+ *
+ * <p>Everything here is safe to use from any number of threads: the
+ * counters are {@link LongAdder}s, so threads don't fight over them.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class Stats {
+
+   /**
+    * Things which are counted.
+    */
+   public enum Counter {
+      CLASSES_LOADED("classes loaded from the class path"),
+      CLASS_FILES_PARSED("class files parsed"),
+      REFLECTIVE_CALLS("getDeclared*() calls"),
+      EDGES_ADDED("edges added"),
+      EDGES_SKIPPED("duplicate edges skipped"),
+      BYTES_WRITTEN("bytes written");
+
+      private final String label;
+
+      private Counter(String label) {
+         this.label = label;
+      }
+   }
+
+   /**
+    * Things which are timed once per class.
+    */
+   public enum Timer {
+      INSPECT("inspect a class"),
+      SEARCH("search from a class"),
+      ROW("write a node");
+
+      private final String label;
+
+      private Timer(String label) {
+         this.label = label;
+      }
+   }
+
+   /**
+    * The phases of a run, in the order they happen.
+    */
+   public enum Phase {
+      MERGE("merge shards"),
+      LIST("list classes"),
+      WARM_UP("warm-up"),
+      DETAILED_INFO("detailed info"),
+      BATCHES("batch inspection"),
+      NODES("nodes export"),
+      EDGES("edges export"),
+      CYCLES("cycles export"),
+      ROLLUP("rollup export"),
+      QUERY("query");
+
+      private final String label;
+
+      private Phase(String label) {
+         this.label = label;
+      }
+   }
+
+   private static final LongAdder[] counters =
+            new LongAdder[Counter.values().length];
+   private static final Histogram[] timers =
+            new Histogram[Timer.values().length];
+   private static final AtomicLongArray phases =
+            new AtomicLongArray(Phase.values().length);
+
+   static {
+      for(int i=0; i<counters.length; i++) counters[i] = new LongAdder();
+      for(int i=0; i<timers.length; i++) timers[i] = new Histogram();
+   }
+
+   private Stats() {
+   }
+
+   /**
+    * @param c What to count one more of
+    */
+   public static void count(Counter c) {
+      counters[c.ordinal()].increment();
+   }
+
+   /**
+    * @param c What to count
+    * @param n How many more of it
+    */
+   public static void count(Counter c, long n) {
+      counters[c.ordinal()].add(n);
+   }
+
+   /**
+    * @param c Something that's counted
+    * @return The count so far
+    */
+   public static long get(Counter c) {
+      return counters[c.ordinal()].sum();
+   }
+
+   /**
+    * @param t Something that's timed
+    * @return The times recorded for it so far
+    */
+   public static Histogram get(Timer t) {
+      return timers[t.ordinal()];
+   }
+
+   /**
+    * @param p A phase
+    * @return Total time spent in the phase so far, in nanoseconds
+    */
+   public static long get(Phase p) {
+      return phases.get(p.ordinal());
+   }
+
+   /**
+    * Start timing a phase of the run. Call {@link Span#end()} (in a finally
+    * block) when it's done.
+    * @param p The phase
+    * @return The running timer
+    */
+   public static Span begin(Phase p) {
+      PhaseEvent event = null;
+      if(FlightRecorder.isInitialized()) {
+         event = new PhaseEvent();
+         event.phase = p.label;
+      }
+      return new Span(p,null,event);
+   }
+
+   /**
+    * Start timing something done to one class. Call {@link Span#end()} (in
+    * a finally block) when it's done.
+    * @param t What's being done
+    * @param cls Name of the class
+    * @return The running timer
+    */
+   public static Span begin(Timer t, String cls) {
+      ClassEvent event = null;
+      if(FlightRecorder.isInitialized()) {
+         event = new ClassEvent();
+         event.step = t.label;
+         event.className = cls;
+      }
+      return new Span(null,t,event);
+   }
+
+   /**
+    * Print everything that's been recorded.
+    * @param out Where to print it
+    */
+   public static void report(PrintStream out) {
+      out.println("Run summary:");
+      for(Phase p : Phase.values()) {
+         long nanos = get(p);
+         if(nanos > 0) {
+            out.println("   "+p.label+": "+(nanos/1000000)+"ms");
+         }
+      }
+      for(Counter c : Counter.values()) {
+         out.println("   "+c.label+": "+get(c));
+      }
+      out.println("   JVM classes loaded: "+ManagementFactory
+               .getClassLoadingMXBean().getTotalLoadedClassCount());
+      out.println("   reference cache: "+ClassInspector.getReferenceCache());
+      AnalysisCache cache = BytecodeInspector.getCache();
+      if(cache != null) out.println("   analysis cache: "+cache);
+      for(Timer t : Timer.values()) {
+         if(get(t).getCount() > 0) {
+            out.println("   "+t.label+": "+get(t));
+         }
+      }
+   }
+
+   /**
+    * A phase, or something being done to a class, which is being timed.
+    */
+   public static final class Span {
+      private final Phase phase;
+      private final Timer timer;
+      private final Event event;
+      private final long start = System.nanoTime();
+
+      private Span(Phase phase, Timer timer, Event event) {
+         this.phase = phase;
+         this.timer = timer;
+         this.event = event;
+         if(event != null) event.begin();
+      }
+
+      /**
+       * Stop the timer, and record how long it ran for.
+       */
+      public void end() {
+         long nanos = System.nanoTime()-start;
+         if(phase != null) phases.addAndGet(phase.ordinal(),nanos);
+         if(timer != null) timers[timer.ordinal()].record(nanos);
+         if(event != null) event.commit();
+      }
+   }
+
+   /**
+    * <p>Times, in nanoseconds, bucketed by powers of two: bucket n holds
+    * times from 2^n up to 2^(n+1). That's precise enough to tell 10us from
+    * 100us from 1ms, and recording a time never allocates or locks.</p>
+    */
+   public static final class Histogram {
+      private final AtomicLongArray buckets = new AtomicLongArray(64);
+      private final LongAdder count = new LongAdder();
+      private final LongAdder total = new LongAdder();
+
+      /**
+       * @param nanos A time to record
+       */
+      public void record(long nanos) {
+         buckets.incrementAndGet(63-Long.numberOfLeadingZeros(nanos|1));
+         count.increment();
+         total.add(nanos);
+      }
+
+      /**
+       * @return Number of times recorded
+       */
+      public long getCount() {
+         return count.sum();
+      }
+
+      /**
+       * @return Mean of the times recorded, in nanoseconds
+       */
+      public long getMean() {
+         long n = getCount();
+         return n == 0 ? 0 : total.sum()/n;
+      }
+
+      /**
+       * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile
+       * @return A time (in nanoseconds) which at least that fraction of the
+       * times recorded were under
+       */
+      public long getPercentile(double fraction) {
+         long n = getCount();
+         long wanted = (long) Math.ceil(n*fraction);
+         long seen = 0;
+         for(int b=0; b<64; b++) {
+            seen += buckets.get(b);
+            if(seen >= wanted && seen > 0) return b == 62 ? Long.MAX_VALUE
+                     : 1L << (b+1);
+         }
+         return 0;
+      }
+
+      @Override
+      public String toString() {
+         return getCount()+" times, mean "+micros(getMean())+", p50 < "+
+                  micros(getPercentile(0.5))+", p90 < "+
+                  micros(getPercentile(0.9))+", p99 < "+
+                  micros(getPercentile(0.99));
+      }
+
+      private static String micros(long nanos) {
+         return nanos < 10000 ? (nanos/1000.0)+"us" : (nanos/1000)+"us";
+      }
+   }
+
+   @Name("uk.ac.aber.dcs.odj.Phase")
+   @Label("Analysis Phase")
+   @Category("Class Analysis")
+   @StackTrace(false)
+   static final class PhaseEvent extends Event {
+      @Label("Phase")
+      String phase;
+   }
+
+   @Name("uk.ac.aber.dcs.odj.Class")
+   @Label("Class Analysis")
+   @Category("Class Analysis")
+   @StackTrace(false)
+   static final class ClassEvent extends Event {
+      @Label("Step")
+      String step;
+
+      @Label("Class")
+      String className;
+   }
+}
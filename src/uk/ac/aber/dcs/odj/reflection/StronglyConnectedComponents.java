@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package uk.ac.aber.dcs.odj.reflection;
+
+import java.util.Arrays;
+
+/**
+ * <p>The strongly connected components of a {@link ClassGraph}: groups of
+ * classes which can all reach each other (i.e. which depend on each other
+ * in a cycle). Every class is in exactly one component; a class which isn't
+ * in a cycle is in a component on its own.</p>
+ *
+ * <p>Found with Tarjan's algorithm, using explicit stacks rather than
+ * recursion so that long chains of references can't overflow the call
+ * stack. Components are numbered in the order Tarjan's algorithm finishes
+ * them, which means a component can only refer to components with lower
+ * numbers than itself (other than itself): working through them in order
+ * always deals with what a component refers to before the component.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+public final class StronglyConnectedComponents {
+   private final int[] component;
+   private final int count;
+   // Members of each component, in CSR form like ClassGraph.Adjacency
+   private final int[] offsets;
+   private final int[] members;
+
+   /**
+    * @param graph What each class refers to
+    */
+   public StronglyConnectedComponents(ClassGraph.Adjacency graph) {
+      int n = graph.size();
+      component = new int[n];
+      int[] index = new int[n];
+      int[] low = new int[n];
+      boolean[] onStack = new boolean[n];
+      int[] stack = new int[n];
+      int top = 0;
+      // The "call stack": a class, and how far through its edges we are
+      int[] calls = new int[n];
+      int[] edges = new int[n];
+      int depth = 0;
+      int next = 0;
+      int found = 0;
+
+      Arrays.fill(index,-1);
+      for(int s=0; s<n; s++) {
+         if(index[s] != -1) continue;
+         index[s] = low[s] = next++;
+         stack[top++] = s;
+         onStack[s] = true;
+         calls[depth] = s;
+         edges[depth++] = graph.start(s);
+         while(depth > 0) {
+            int v = calls[depth-1];
+            if(edges[depth-1] < graph.end(v)) {
+               int w = graph.target(edges[depth-1]++);
+               if(index[w] == -1) {
+                  index[w] = low[w] = next++;
+                  stack[top++] = w;
+                  onStack[w] = true;
+                  calls[depth] = w;
+                  edges[depth++] = graph.start(w);
+               } else if(onStack[w]) {
+                  low[v] = Math.min(low[v],index[w]);
+               }
+               continue;
+            }
+            // All of v's edges done: v is the root of a component if
+            // nothing it reaches is further down the stack
+            if(low[v] == index[v]) {
+               int w;
+               do {
+                  w = stack[--top];
+                  onStack[w] = false;
+                  component[w] = found;
+               } while(w != v);
+               found++;
+            }
+            depth--;
+            if(depth > 0) {
+               int u = calls[depth-1];
+               low[u] = Math.min(low[u],low[v]);
+            }
+         }
+      }
+      count = found;
+
+      offsets = new int[count+1];
+      for(int v=0; v<n; v++) offsets[component[v]+1]++;
+      for(int c=0; c<count; c++) offsets[c+1] += offsets[c];
+      members = new int[n];
+      int[] fill = Arrays.copyOf(offsets,count);
+      for(int v=0; v<n; v++) members[fill[component[v]]++] = v;
+   }
+
+   /**
+    * @return Number of components
+    */
+   public int getCount() {
+      return count;
+   }
+
+   /**
+    * @return Number of classes covered
+    */
+   public int size() {
+      return component.length;
+   }
+
+   /**
+    * @param v Id of a class
+    * @return The number of the component the class is in
+    */
+   public int getComponent(int v) {
+      return component[v];
+   }
+
+   /**
+    * @param c Number of a component
+    * @return Number of classes in the component
+    */
+   public int getSize(int c) {
+      return offsets[c+1]-offsets[c];
+   }
+
+   /**
+    * @param c Number of a component
+    * @return Index of the component's first member
+    */
+   public int start(int c) {
+      return offsets[c];
+   }
+
+   /**
+    * @param c Number of a component
+    * @return Index just after the component's last member
+    */
+   public int end(int c) {
+      return offsets[c+1];
+   }
+
+   /**
+    * @param i Index between start(c) and end(c) for some component c
+    * @return The id of that member of the component
+    */
+   public int member(int i) {
+      return members[i];
+   }
+}
@@ -5,6 +5,11 @@ package uk.co.slashingedge.utils;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Logging class, to handle logging (make it prettier, etc)
@@ -16,11 +21,34 @@ public final class Log {
    public static final Log logger = new Log();
    private PrintStream out;
    private PrintStream err;
+   private volatile LogBuffer buffer = null;
+   // Reused for every print (while holding the lock), see wrap()
+   private final StringBuilder joined = new StringBuilder();
+   private final StringBuilder line = new StringBuilder();
+   private final Encoder encoder = new Encoder();
+   private final Row row = new Row();
 
    public enum Level {
       ERROR, PRINT
    }
 
+   /**
+    * What an asynchronous Log (see {@link Log#async(int, Overflow)}) does
+    * when its buffer is full.
+    */
+   public enum Overflow {
+      /**
+       * Wait until the writer's made some room: nothing's lost, but logging
+       * is as slow as writing when there's a lot of it.
+       */
+      BLOCK,
+      /**
+       * Throw the text away (see {@link Log#getDropped()}), so logging never
+       * holds anything up.
+       */
+      DROP
+   }
+
    /**
     * Create a default Log object with output & error streams redirected to
     * System.out and System.err respectively
@@ -68,6 +96,64 @@ public final class Log {
       this(new PrintStream(out),new PrintStream(err));
    }
    
+   /**
+    * Write output from now on in the background: printing just copies the
+    * (wrapped) text into a buffer of records, and a thread writes out
+    * whatever's in the buffer in batches. Things are still written in the
+    * order they were printed. Anything left in the buffer when the program
+    * ends is written out before it exits, but {@link #flush()} or
+    * {@link #close()} should be used to make sure it's all been written at
+    * a particular point.
+    * @param records Number of prints which can be waiting to be written
+    * @param overflow What to do when they're all waiting
+    * @return the same instance of Log, for method chaining
+    */
+   public synchronized Log async(int records, Overflow overflow) {
+      if(buffer == null) buffer = new LogBuffer(out,err,records,overflow);
+      return this;
+   }
+
+   /**
+    * Wait until everything printed so far has been written (if the Log is
+    * asynchronous), and flush the output & error streams.
+    * @return the same instance of Log, for method chaining
+    */
+   public Log flush() {
+      LogBuffer buffer = this.buffer;
+      if(buffer != null) {
+         buffer.flush();
+      } else {
+         out.flush();
+         err.flush();
+      }
+      return this;
+   }
+
+   /**
+    * Write out everything printed so far, stop the background writer (if
+    * the Log is asynchronous) and close the output & error streams, unless
+    * they're System.out or System.err. Nothing should be printed while the
+    * Log's being closed.
+    */
+   public synchronized void close() {
+      LogBuffer buffer = this.buffer;
+      this.buffer = null;
+      if(buffer != null) buffer.close();
+      out.flush();
+      err.flush();
+      if(out != System.out && out != System.err) out.close();
+      if(err != System.out && err != System.err) err.close();
+   }
+
+   /**
+    * @return Number of prints thrown away because an asynchronous Log's
+    * buffer was full (see {@link Overflow#DROP})
+    */
+   public long getDropped() {
+      LogBuffer buffer = this.buffer;
+      return buffer == null ? 0 : buffer.getDropped();
+   }
+
    /**
     * Wrap a string on word boundaries: if a line is going to be longer than
     * the specified width, append a newline, therefore wrapping
@@ -78,73 +164,119 @@ public final class Log {
     * @param width The width to wrap the string to.
     * @return The resulting multiple-line, word-wrapped string.
     */
-   public static String wrap(String string, int width) {
-      if(width == -1) return string;
-      if(string == "" | string == null) return "";
-      String[] words = string.split(" ");
-      if(words.length == 0) return "";
-      StringBuilder sb = new StringBuilder();
-      StringBuilder line = new StringBuilder();
-      for(String word : words) {
-         if(line.length()+word.length() >= width) {
-            line.append("\n");
-            sb.append(line);
-            line = new StringBuilder();
-         }
-         line.append(word+" ");
-      }
-      sb.append(line);
+   public static String wrap(CharSequence string, int width) {
+      if(width == -1) return string == null ? null : string.toString();
+      if(string == null) return "";
+      StringBuilder sb = new StringBuilder(string.length()+16);
+      wrap(sb,string,width);
       return sb.toString();
    }
    
    /**
     * Word-wrap a string and IMMEDIATELY output it... rather than
-    * creating a new, wrapped string out of it first.
-    * Slightly faster than the wrap() method that returns a string as no
-    * StringBuilder objects are instanced.
+    * creating a new, wrapped string out of it first. The wrapped text goes
+    * into a buffer which is kept for the next time, and is written out
+    * from there, so once the buffer's big enough for the longest lines
+    * nothing's allocated at all (as long as the text's plain ASCII).
     * @param level The output to log output too (ERROR or PRINT)
-    * @param string The string to print
+    * @param string The string to print, e.g. a String or StringBuilder.
+    * It's copied, so a StringBuilder can be reused straight afterwards.
     * @return the same instance of Log, for method chaining
     */
-   public Log wrap(Level level, String string) {
-      PrintStream output = this.out;
-      if(level == Level.ERROR) output = this.err;
-      
-      if(width == -1) {
-         output.print(string);
+   public Log wrap(Level level, CharSequence string) {
+      LogBuffer buffer = this.buffer;
+      if(buffer != null && buffer.publish(level == Level.ERROR,string,width)) {
          return this;
       }
-      
-      if(string == "" | string == null) {
-         return this;
+      synchronized(this) {
+         line.setLength(0);
+         wrap(line,string,width);
+         encoder.write(level == Level.ERROR ? err : out,line);
       }
-      
-      String[] words = string.split(" ");
-      if(words.length == 0) {
-         output.print(string);
-         return this;
+      return this;
+   }
+   
+   /*
+    * The wrapping itself: the words are found by scanning the string in
+    * place, and copied straight into the StringBuilder. Words are split on
+    * single spaces, and spaces at the end are dropped, so it comes out the
+    * same as splitting the string on " " would.
+    */
+   static void wrap(StringBuilder into, CharSequence string, int width) {
+      if(width == -1) {
+         into.append(string);
+         return;
+      }
+      if(string == null) return;
+      int end = string.length();
+      while(end > 0 && string.charAt(end-1) == ' ') end--;
+      if(end == 0) {
+         // Nothing but spaces (or nothing at all)
+         into.append(string);
+         return;
       }
-      
       int length = 0;
-      for(String word : words) {
-         if(length+word.length() >= width) {
-            output.print("\n");
+      for(int start=0; start <= end; ) {
+         int space = start;
+         while(space < end && string.charAt(space) != ' ') space++;
+         int word = space-start;
+         if(length+word >= width) {
+            into.append('\n');
             length = 0;
          }
-         output.print(word+" ");
-         length += word.length()+1;
+         into.append(string,start,space).append(' ');
+         length += word+1;
+         start = space+1;
       }
-      
-      return this;
    }
-   
+
+   /*
+    * Writes text to a PrintStream without making a String out of it first
+    * (which PrintStream.print() would). Plain ASCII goes straight into a
+    * byte buffer, anything else goes through an encoder for the default
+    * charset (the same one a PrintStream uses, unless it's given another).
+    * Not thread safe.
+    */
+   static final class Encoder {
+      private final CharsetEncoder encoder = Charset.defaultCharset()
+               .newEncoder()
+               .onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      private final ByteBuffer bytes = ByteBuffer.allocate(1 << 13);
+
+      void write(PrintStream stream, CharSequence text) {
+         int length = text.length();
+         for(int i=0; i<length; i++) {
+            char c = text.charAt(i);
+            if(c >= 0x80) {
+               encode(stream,CharBuffer.wrap(text,i,length));
+               break;
+            }
+            if(!bytes.hasRemaining()) flush(stream);
+            bytes.put((byte) c);
+         }
+         flush(stream);
+      }
+
+      private void encode(PrintStream stream, CharBuffer chars) {
+         encoder.reset();
+         while(encoder.encode(chars,bytes,true).isOverflow()) flush(stream);
+         while(encoder.flush(bytes).isOverflow()) flush(stream);
+      }
+
+      private void flush(PrintStream stream) {
+         stream.write(bytes.array(),0,bytes.position());
+         bytes.clear();
+      }
+   }
+
    /**
     * Print a string to one of the standard outputs
     * @param level Which output: ERROR (prints to Log.out) or PRINT (Log.err)
     * @param string The string to print
     * @return the same instance of Log, for method chaining
     */
-   public Log p(Level level, String string) {
+   public Log p(Level level, CharSequence string) {
       this.wrap(level,string);
       return this;
    }
@@ -166,15 +298,15 @@ public final class Log {
     * @param strings Strings to print
     * @return the same instance of Log, for method chaining
     */
-   public Log p(Level level, Object ... strings) {
-      StringBuilder sb = new StringBuilder();
+   public synchronized Log p(Level level, Object ... strings) {
+      joined.setLength(0);
       for(int i=0; i<strings.length; i++) {
-         sb.append(strings[i]);
+         joined.append(strings[i]);
          if(i<strings.length-1) {
-            sb.append(this.delim);
+            joined.append(this.delim);
          }
       }
-      this.p(level,sb.toString());
+      this.p(level,joined);
       return this;
    }
    
@@ -212,6 +344,86 @@ public final class Log {
       return this;
    }
 
+   /**
+    * Start a row of fields to print to output (Log.out), with the delimiter
+    * between them, the same as {@link #p(Object...)} but without boxing
+    * numbers or making an array of the fields: numbers are written straight
+    * into a buffer as digits. e.g. <code>log.row().str(name).i(methods)
+    * .l(size).end()</code>
+    * The same Row is used for every row, so only one row can be built at a
+    * time on each Log.
+    * @return The (empty) row
+    */
+   public Row row() {
+      row.fields.setLength(0);
+      row.started = false;
+      return row;
+   }
+
+   /**
+    * A row of fields being built up, see {@link Log#row()}.
+    */
+   public final class Row {
+      private final StringBuilder fields = new StringBuilder();
+      private boolean started = false;
+
+      private Row() {
+      }
+
+      private StringBuilder next() {
+         if(started) {
+            fields.append(delim);
+         } else {
+            started = true;
+         }
+         return fields;
+      }
+
+      /**
+       * @param s Text of the next field. null is written as "null".
+       * @return This row, for method chaining
+       */
+      public Row str(CharSequence s) {
+         next().append(s);
+         return this;
+      }
+
+      /**
+       * @param i The next field
+       * @return This row, for method chaining
+       */
+      public Row i(int i) {
+         next().append(i);
+         return this;
+      }
+
+      /**
+       * @param l The next field
+       * @return This row, for method chaining
+       */
+      public Row l(long l) {
+         next().append(l);
+         return this;
+      }
+
+      /**
+       * Print the row, like {@link Log#p(Object...)} (without a newline).
+       * @return The Log, for method chaining
+       */
+      public Log end() {
+         return wrap(Level.PRINT,fields);
+      }
+
+      /**
+       * Print the row followed by a newline, like {@link Log#pl(Object...)}.
+       * @return The Log, for method chaining
+       */
+      public Log endLine() {
+         end();
+         return p(Level.PRINT,"\n");
+      }
+   }
+
    /**
     * Print a list of objects to the error stream (Log.err) with a delimiter
     * between the strings.
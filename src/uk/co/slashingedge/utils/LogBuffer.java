@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package uk.co.slashingedge.utils;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>The ring buffer behind an asynchronous {@link Log}. Callers wrap their
+ * text straight into one of a fixed number of records (so once the records
+ * have grown to the size of the longest lines, publishing allocates
+ * nothing), and a background thread writes out everything that's been
+ * published since it last looked, as one print per stream rather than one
+ * per word.</p>
+ *
+ * <p>Records are written in the order they were published, from any number
+ * of threads.</p>
+ *
+ * @author Owain Jones [odj@aber.ac.uk]
+ */
+final class LogBuffer implements Runnable {
+   // Records which grow bigger than this are thrown away once written
+   private static final int MAX_RECORD = 1 << 16;
+
+   private final PrintStream out;
+   private final PrintStream err;
+   private final Log.Overflow overflow;
+   private final StringBuilder[] records;
+   private final boolean[] errors;
+   private final StringBuilder batch = new StringBuilder();
+   private final Log.Encoder encoder = new Log.Encoder();
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition published = lock.newCondition();
+   private final Condition written = lock.newCondition();
+   private final Thread writer = new Thread(this,"Log writer");
+   private final Thread hook = new Thread() {
+      @Override
+      public void run() {
+         flush();
+      }
+   };
+   // Sequence numbers: records before head have been published, and
+   // records before tail have been written (and can be reused)
+   private long head = 0;
+   private long tail = 0;
+   private long dropped = 0;
+   private boolean closed = false;
+
+   /**
+    * @param out Stream to write PRINT records to
+    * @param err Stream to write ERROR records to
+    * @param size Number of records
+    * @param overflow What to do when all of the records are waiting to be
+    * written
+    */
+   LogBuffer(PrintStream out, PrintStream err, int size,
+            Log.Overflow overflow) {
+      this.out = out;
+      this.err = err;
+      this.overflow = overflow;
+      records = new StringBuilder[size];
+      errors = new boolean[size];
+      for(int i=0; i<size; i++) records[i] = new StringBuilder();
+      writer.setDaemon(true);
+      writer.start();
+      // Whatever's still in the buffer when the program ends (or dies)
+      // should still make it out
+      Runtime.getRuntime().addShutdownHook(hook);
+   }
+
+   /**
+    * Wrap a string into the next free record, and publish it.
+    * @param error Whether it's for the error stream
+    * @param string The string
+    * @param width Width to wrap it to, see {@link Log#wrap(Log.Level,
+    * CharSequence)}
+    * @return False if the buffer's been closed, so nothing was published
+    */
+   boolean publish(boolean error, CharSequence string, int width) {
+      lock.lock();
+      try {
+         while(!closed && head-tail == records.length) {
+            if(overflow == Log.Overflow.DROP) {
+               dropped++;
+               return true;
+            }
+            written.awaitUninterruptibly();
+         }
+         if(closed) return false;
+         int slot = (int) (head%records.length);
+         StringBuilder record = records[slot];
+         record.setLength(0);
+         Log.wrap(record,string,width);
+         errors[slot] = error;
+         head++;
+         published.signal();
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Wait until everything published so far has been written, and flush
+    * both streams.
+    */
+   void flush() {
+      lock.lock();
+      try {
+         long target = head;
+         while(tail < target && writer.isAlive()) {
+            written.awaitUninterruptibly();
+         }
+      } finally {
+         lock.unlock();
+      }
+      out.flush();
+      err.flush();
+   }
+
+   /**
+    * Write out everything that's been published, and stop the writer.
+    * Anything published afterwards is refused.
+    */
+   void close() {
+      lock.lock();
+      try {
+         closed = true;
+         published.signal();
+      } finally {
+         lock.unlock();
+      }
+      boolean interrupted = false;
+      while(writer.isAlive()) {
+         try {
+            writer.join();
+         } catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if(interrupted) Thread.currentThread().interrupt();
+      try {
+         Runtime.getRuntime().removeShutdownHook(hook);
+      } catch(IllegalStateException e) {
+         // Already shutting down, and the hook's already been run
+      }
+      out.flush();
+      err.flush();
+   }
+
+   /**
+    * @return Number of records thrown away because the buffer was full
+    */
+   long getDropped() {
+      lock.lock();
+      try {
+         return dropped;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /*
+    * The writer: take everything published since the last batch, write it
+    * out, then free up the records. Publishers aren't held up while it
+    * writes, as the records being written aren't reused until afterwards.
+    */
+   @Override
+   public void run() {
+      while(true) {
+         long from;
+         long to;
+         lock.lock();
+         try {
+            while(tail == head && !closed) published.awaitUninterruptibly();
+            if(tail == head) return;
+            from = tail;
+            to = head;
+         } finally {
+            lock.unlock();
+         }
+         write(from,to);
+         lock.lock();
+         try {
+            tail = to;
+            written.signalAll();
+         } finally {
+            lock.unlock();
+         }
+      }
+   }
+
+   /*
+    * Write a batch of records, one print for each run of records going to
+    * the same stream.
+    */
+   private void write(long from, long to) {
+      boolean error = false;
+      for(long i=from; i<to; i++) {
+         int slot = (int) (i%records.length);
+         if(errors[slot] != error && batch.length() > 0) print(error);
+         error = errors[slot];
+         batch.append(records[slot]);
+         if(records[slot].capacity() > MAX_RECORD) {
+            records[slot] = new StringBuilder();
+         }
+      }
+      if(batch.length() > 0) print(error);
+   }
+
+   private void print(boolean error) {
+      PrintStream stream = error ? err : out;
+      encoder.write(stream,batch);
+      stream.flush();
+      batch.setLength(0);
+      if(batch.capacity() > MAX_RECORD*4) batch.trimToSize();
+   }
+}